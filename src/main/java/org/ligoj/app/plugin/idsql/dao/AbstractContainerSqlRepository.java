@@ -8,7 +8,6 @@ import lombok.Setter;
 import org.apache.commons.collections4.IteratorUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.Strings;
 import org.ligoj.app.api.Normalizer;
 import org.ligoj.app.iam.ContainerOrg;
 import org.ligoj.app.iam.IContainerRepository;
@@ -23,6 +22,8 @@ import org.springframework.data.domain.Sort;
 import org.springframework.data.domain.Sort.Direction;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 /**
  * A SQL container repository.
@@ -42,6 +43,33 @@ public abstract class AbstractContainerSqlRepository<T extends ContainerOrg, C e
 	@Setter
 	protected CacheSqlRepository repository;
 
+	/**
+	 * Folded container names, by name. Cleared when the identity data change, so the names of the deleted containers
+	 * are not retained.
+	 */
+	private final Map<String, String> foldedNames = new ConcurrentHashMap<>();
+
+	/**
+	 * Version of the identity data the folded names have been computed from.
+	 */
+	private volatile long foldedVersion;
+
+	/**
+	 * All containers sorted by identifier. Rebuilt when the identity data change.
+	 */
+	private volatile Sorted<T> sorted;
+
+	/**
+	 * Containers sorted by identifier.
+	 *
+	 * @param version    The version of the identity data the containers have been sorted from.
+	 * @param containers The sorted containers.
+	 * @param ids        The identifiers of the sorted containers, in the same order.
+	 * @param <T>        The container type.
+	 */
+	private record Sorted<T>(long version, List<T> containers, String[] ids) {
+	}
+
 	/**
 	 * Human-readable type name.
 	 */
@@ -87,15 +115,89 @@ public abstract class AbstractContainerSqlRepository<T extends ContainerOrg, C e
 		}
 		final Set<T> result = new TreeSet<>(comparator);
 
-		// Filter the containers, filtering by the criteria
-		containers.stream()
-				.filter(c -> StringUtils.isEmpty(criteria) || Strings.CI.contains(c.getName(), criteria))
-				.forEach(result::add);
+		// Filter the containers, filtering by the criteria folded once
+		containers.stream().filter(newMatcher(criteria)).forEach(result::add);
 
 		// Apply in-memory pagination
 		return inMemoryPagination.newPage(result, pageable);
 	}
 
+	/**
+	 * Count the containers having the given criteria in their name, without sorting nor collecting them.
+	 *
+	 * @param containers The visible containers.
+	 * @param criteria   The optional criteria used to check the name.
+	 * @return The amount of matching containers. Same as the total elements returned by
+	 *         {@link #findAll(Set, String, Pageable, Map)}.
+	 */
+	public long count(final Set<T> containers, final String criteria) {
+		if (StringUtils.isEmpty(criteria)) {
+			return containers.size();
+		}
+		return containers.stream().filter(newMatcher(criteria)).count();
+	}
+
+	/**
+	 * Return the matcher of the containers having the given criteria in their name, ignoring the case.
+	 */
+	private Predicate<T> newMatcher(final String criteria) {
+		final var version = repository.getVersion();
+		if (version != foldedVersion) {
+			foldedNames.clear();
+			foldedVersion = version;
+		}
+		final var folded = FoldUtils.fold(criteria);
+		return c -> StringUtils.isEmpty(folded) || c.getName() != null
+				&& foldedNames.computeIfAbsent(c.getName(), FoldUtils::fold).contains(folded);
+	}
+
+	/**
+	 * Return the containers following the given cursor, ordered by identifier. Since the cursor is the identifier of
+	 * the last returned container and not an offset, the pages stay consistent when containers are created or deleted
+	 * while paging. The cursor is located by a binary search in the containers sorted once per version of the identity
+	 * data, and only the containers of the returned page are then checked.
+	 *
+	 * @param containers The visible containers. Only the ones of the current identity data are returned.
+	 * @param criteria   The optional criteria used to check the name.
+	 * @param after      The identifier of the last returned container. When <code>null</code>, the first page is
+	 *                   returned.
+	 * @param size       The maximal amount of returned containers.
+	 * @return The containers following the cursor, ordered by identifier.
+	 */
+	public List<T> findAllAfter(final Set<T> containers, final String criteria, final String after, final int size) {
+		final var all = getSorted();
+		final var matcher = newMatcher(criteria);
+		var rank = 0;
+		if (after != null) {
+			final var position = Arrays.binarySearch(all.ids(), after);
+			rank = position >= 0 ? position + 1 : -position - 1;
+		}
+		final var result = new ArrayList<T>(Math.max(0, Math.min(size, containers.size())));
+		for (; rank < all.ids().length && result.size() < size; rank++) {
+			final var container = all.containers().get(rank);
+			if (containers.contains(container) && matcher.test(container)) {
+				result.add(container);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return all containers sorted by identifier, sorted again when the identity data have changed.
+	 */
+	private Sorted<T> getSorted() {
+		final var version = repository.getVersion();
+		var result = sorted;
+		if (result == null || result.version() != version) {
+			final var containers = findAll().values().stream().sorted(Comparator.comparing(ContainerOrg::getId))
+					.toList();
+			result = new Sorted<>(version, containers, containers.stream().map(ContainerOrg::getId)
+					.toArray(String[]::new));
+			sorted = result;
+		}
+		return result;
+	}
+
 	/**
 	 * Find a container from its identifier. Security is applied regarding the given user.
 	 *
@@ -0,0 +1,239 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded execution stage of the password hashing. The hashes are computed by a fixed amount of threads, and the
+ * pending ones are queued up to a limit. Beyond this limit, the authentication is rejected immediately, so a login
+ * burst cannot take all the cores of the server.
+ * <p>
+ * The results of the background hashes are stored by a single separate thread, so the database writes never hold a
+ * hashing thread.
+ */
+@Component
+@Slf4j
+public class AuthenticationExecutor {
+
+	/**
+	 * Default maximal amount of queued hashes.
+	 */
+	public static final int DEFAULT_QUEUE = 100;
+
+	/**
+	 * Executor of the hashes. Created on demand.
+	 */
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Executor of the stores following the background hashes. Created on demand.
+	 */
+	private ThreadPoolExecutor updater;
+
+	/**
+	 * Amount of hashing threads. When <code>0</code>, half of the available processors.
+	 */
+	private int threads;
+
+	/**
+	 * Maximal amount of queued hashes.
+	 */
+	private int queue = DEFAULT_QUEUE;
+
+	/**
+	 * Amount of rejected hashes.
+	 */
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Amount of executed hashes.
+	 */
+	private final AtomicLong executedCount = new AtomicLong();
+
+	/**
+	 * Total time spent by the executed hashes in the queue, in nanoseconds.
+	 */
+	private final AtomicLong waitTime = new AtomicLong();
+
+	/**
+	 * Configure the execution stage. The running executor is replaced when the configuration changes. Initialized
+	 * from the <code>ligoj.id.sql.auth-*</code> properties, shared by all the nodes.
+	 *
+	 * @param threads The amount of hashing threads. When <code>0</code>, half of the available processors.
+	 * @param queue   The maximal amount of queued hashes.
+	 */
+	@Autowired
+	public synchronized void configure(@Value("${ligoj.id.sql.auth-threads:0}") final int threads,
+			@Value("${ligoj.id.sql.auth-queue:" + DEFAULT_QUEUE + "}") final int queue) {
+		if (this.threads != threads || this.queue != queue) {
+			this.threads = threads;
+			this.queue = queue;
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+			}
+			if (updater != null) {
+				updater.shutdown();
+				updater = null;
+			}
+		}
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			final var size = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+			final var counter = new AtomicInteger();
+			log.info("Password hashing bounded to {} threads and {} queued hashes", size, queue);
+			executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+						final var thread = new Thread(r, "id-sql-auth-" + counter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}, new ThreadPoolExecutor.AbortPolicy());
+		}
+		return executor;
+	}
+
+	private synchronized ThreadPoolExecutor getUpdater() {
+		if (updater == null) {
+			updater = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+						final var thread = new Thread(r, "id-sql-auth-update");
+						thread.setDaemon(true);
+						return thread;
+					}, new ThreadPoolExecutor.AbortPolicy());
+		}
+		return updater;
+	}
+
+	/**
+	 * Execute a hash in the bounded stage and wait for its result.
+	 *
+	 * @param task The hash to execute.
+	 * @param <T>  The result type.
+	 * @return The hash result.
+	 * @throws AuthenticationServiceException When the queue is full.
+	 */
+	public <T> T execute(final Supplier<T> task) {
+		final var submitted = System.nanoTime();
+		try {
+			return getExecutor().submit(() -> {
+				waitTime.addAndGet(System.nanoTime() - submitted);
+				executedCount.incrementAndGet();
+				return task.get();
+			}).get();
+		} catch (final RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			log.warn("Too many pending authentications, rejected");
+			throw new AuthenticationServiceException("Too many pending authentications", e);
+		} catch (final ExecutionException e) {
+			throw FutureUtils.unchecked(e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AuthenticationServiceException("Interrupted authentication", e);
+		}
+	}
+
+	/**
+	 * Submit a background hash to the bounded stage without waiting for it. Its result is then handed to the store
+	 * thread. The failures are logged, and the result is dropped when the store queue is full.
+	 *
+	 * @param task  The hash to execute.
+	 * @param store The store of the hash result, executed by the store thread.
+	 * @param <T>   The result type.
+	 * @return <code>true</code> when the hash is queued, <code>false</code> when the queue is full.
+	 */
+	public <T> boolean submit(final Supplier<T> task, final Consumer<T> store) {
+		try {
+			getExecutor().execute(() -> {
+				try {
+					final var result = task.get();
+					getUpdater().execute(() -> {
+						try {
+							store.accept(result);
+						} catch (final RuntimeException e) {
+							log.warn("Background hash store failed", e);
+						}
+					});
+				} catch (final RejectedExecutionException e) {
+					log.warn("Too many pending hash stores, dropped");
+				} catch (final RuntimeException e) {
+					log.warn("Background hash failed", e);
+				}
+			});
+			return true;
+		} catch (final RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Stop the hashing and store threads.
+	 */
+	@PreDestroy
+	public synchronized void destroy() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		if (updater != null) {
+			updater.shutdownNow();
+			updater = null;
+		}
+	}
+
+	/**
+	 * Return the amount of hashes waiting for a thread.
+	 *
+	 * @return The amount of hashes waiting for a thread.
+	 */
+	public synchronized int getQueueDepth() {
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	/**
+	 * Return the amount of rejected hashes since the start.
+	 *
+	 * @return The amount of rejected hashes since the start.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Return the amount of executed hashes since the start.
+	 *
+	 * @return The amount of executed hashes since the start.
+	 */
+	public long getExecutedCount() {
+		return executedCount.get();
+	}
+
+	/**
+	 * Return the average time spent by the executed hashes in the queue.
+	 *
+	 * @return The average wait time in milliseconds.
+	 */
+	public double getAverageWait() {
+		final var count = executedCount.get();
+		return count == 0 ? 0 : waitTime.get() / 1_000_000d / count;
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Throttle of the failed authentication attempts, by login and by client address, checked before the password hash is
+ * computed. Only the failed attempts are charged, so the successful logins never consume the budget. Disabled by
+ * default.
+ * <p>
+ * Each key is hashed with a secret key of this instance to two stripes, each holding the theoretical arrival time of
+ * the next failure (GCRA, equivalent to a token bucket refilled lazily). A stripe is updated with a single
+ * compare-and-set, and the memory does not grow with the amount of attacked logins or addresses. A key is rejected only
+ * when both its stripes are exhausted, so a legitimate key is throttled by other ones only when they collide on both
+ * stripes, and these collisions cannot be predicted without the secret key.
+ */
+@Component
+@Slf4j
+public class AuthenticationThrottle {
+
+	/**
+	 * Amount of stripes per dimension. Must be a power of two.
+	 */
+	private static final int STRIPES = 65536;
+
+	/**
+	 * Keyed hash of the keys.
+	 */
+	private static final String HASH = "HmacSHA256";
+
+	/**
+	 * Default amount of failed attempts per minute and per login. Disabled.
+	 */
+	public static final int DEFAULT_LOGIN_RATE = 0;
+
+	/**
+	 * Default amount of consecutive failed attempts per login.
+	 */
+	public static final int DEFAULT_LOGIN_BURST = 20;
+
+	/**
+	 * Default amount of failed attempts per minute and per client address. Disabled.
+	 */
+	public static final int DEFAULT_SOURCE_RATE = 0;
+
+	/**
+	 * Default amount of consecutive failed attempts per client address.
+	 */
+	public static final int DEFAULT_SOURCE_BURST = 100;
+
+	/**
+	 * Origin of the arrival times, so they are positive.
+	 */
+	private final long origin = System.nanoTime();
+
+	private final AtomicLongArray logins = new AtomicLongArray(STRIPES);
+
+	private final AtomicLongArray sources = new AtomicLongArray(STRIPES);
+
+	/**
+	 * Secret key of the stripe hash, specific to this instance.
+	 */
+	private final SecretKeySpec secret;
+
+	/**
+	 * Keyed hash bound to the current thread.
+	 */
+	private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+	/**
+	 * Nanoseconds between two failed attempts of a login. When <code>0</code>, the logins are not throttled.
+	 */
+	private volatile long loginInterval;
+
+	/**
+	 * Nanoseconds a failed attempt of a login may arrive ahead of its theoretical time.
+	 */
+	private volatile long loginTolerance;
+
+	/**
+	 * Nanoseconds between two failed attempts of a client address. When <code>0</code>, the addresses are not
+	 * throttled.
+	 */
+	private volatile long sourceInterval;
+
+	/**
+	 * Nanoseconds a failed attempt of a client address may arrive ahead of its theoretical time.
+	 */
+	private volatile long sourceTolerance;
+
+	/**
+	 * Header holding the client addresses, appended by a trusted reverse proxy, such as <code>X-Forwarded-For</code>.
+	 * The last address of this header is the one of the client connected to this proxy. When not set, the address of
+	 * the connected client is used, and is the one of the reverse proxy when there is one. Set by the
+	 * <code>ligoj.id.sql.source-header</code> property.
+	 */
+	@Setter
+	@Value("${ligoj.id.sql.source-header:}")
+	private volatile String sourceHeader;
+
+	/**
+	 * Amount of rejected attempts.
+	 */
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Build a throttle with the default limits.
+	 */
+	public AuthenticationThrottle() {
+		final var key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		secret = new SecretKeySpec(key, HASH);
+		configure(DEFAULT_LOGIN_RATE, DEFAULT_LOGIN_BURST, DEFAULT_SOURCE_RATE, DEFAULT_SOURCE_BURST);
+	}
+
+	/**
+	 * Configure the limits. Initialized from the <code>ligoj.id.sql.login-*</code> and
+	 * <code>ligoj.id.sql.source-*</code> properties, shared by all the nodes.
+	 *
+	 * @param loginRate   The amount of failed attempts per minute and per login. When <code>0</code>, the logins are
+	 *                    not throttled.
+	 * @param loginBurst  The amount of consecutive failed attempts per login.
+	 * @param sourceRate  The amount of failed attempts per minute and per client address. When <code>0</code>, the
+	 *                    addresses are not throttled.
+	 * @param sourceBurst The amount of consecutive failed attempts per client address.
+	 */
+	@Autowired
+	public void configure(@Value("${ligoj.id.sql.login-rate:" + DEFAULT_LOGIN_RATE + "}") final int loginRate,
+			@Value("${ligoj.id.sql.login-burst:" + DEFAULT_LOGIN_BURST + "}") final int loginBurst,
+			@Value("${ligoj.id.sql.source-rate:" + DEFAULT_SOURCE_RATE + "}") final int sourceRate,
+			@Value("${ligoj.id.sql.source-burst:" + DEFAULT_SOURCE_BURST + "}") final int sourceBurst) {
+		loginInterval = toInterval(loginRate);
+		loginTolerance = loginInterval * (Math.max(1, loginBurst) - 1);
+		sourceInterval = toInterval(sourceRate);
+		sourceTolerance = sourceInterval * (Math.max(1, sourceBurst) - 1);
+	}
+
+	private static long toInterval(final int rate) {
+		return rate <= 0 ? 0 : TimeUnit.MINUTES.toNanos(1) / rate;
+	}
+
+	/**
+	 * Check the given login and the current client address have not exceeded their failed attempts. Nothing is
+	 * charged.
+	 *
+	 * @param login The login.
+	 * @throws AuthenticationServiceException When the login or the client address has exceeded its limit.
+	 */
+	public void check(final String login) {
+		check(login, getSource(), System.nanoTime() - origin);
+	}
+
+	/**
+	 * Charge a failed attempt of the given login from the current client address.
+	 *
+	 * @param login The login.
+	 */
+	public void fail(final String login) {
+		fail(login, getSource(), System.nanoTime() - origin);
+	}
+
+	/**
+	 * Check the given login and client address have not exceeded their failed attempts.
+	 *
+	 * @param login  The login.
+	 * @param source The client address. May be <code>null</code> when unknown.
+	 * @param now    The current time in nanoseconds.
+	 * @throws AuthenticationServiceException When the login or the client address has exceeded its limit.
+	 */
+	void check(final String login, final String source, final long now) {
+		if (source != null && isExhausted(sources, source, now, sourceInterval, sourceTolerance)) {
+			reject("address", source);
+		}
+		if (login != null && isExhausted(logins, toKey(login), now, loginInterval, loginTolerance)) {
+			reject("login", login);
+		}
+	}
+
+	/**
+	 * Charge a failed attempt of the given login from the given client address.
+	 *
+	 * @param login  The login.
+	 * @param source The client address. May be <code>null</code> when unknown.
+	 * @param now    The current time in nanoseconds.
+	 */
+	void fail(final String login, final String source, final long now) {
+		if (source != null) {
+			charge(sources, source, now, sourceInterval);
+		}
+		if (login != null) {
+			charge(logins, toKey(login), now, loginInterval);
+		}
+	}
+
+	private static String toKey(final String login) {
+		return login.toLowerCase(Locale.ROOT);
+	}
+
+	private void reject(final String dimension, final String key) {
+		rejectedCount.incrementAndGet();
+		log.warn("Too many failed authentication attempts for {} {}", dimension, key);
+		throw new AuthenticationServiceException("Too many authentication attempts");
+	}
+
+	/**
+	 * Indicate the next failed attempt of a key would arrive more than the tolerance ahead of the theoretical arrival
+	 * time of both its stripes.
+	 */
+	private boolean isExhausted(final AtomicLongArray stripes, final String key, final long now, final long interval,
+			final long tolerance) {
+		if (interval == 0) {
+			return false;
+		}
+		final var hash = hash(key);
+		return Math.max(stripes.get(index(hash)), now) - now > tolerance
+				&& Math.max(stripes.get(index(hash >>> 32)), now) - now > tolerance;
+	}
+
+	/**
+	 * Delay the theoretical arrival time of both stripes of a key by one interval.
+	 */
+	private void charge(final AtomicLongArray stripes, final String key, final long now, final long interval) {
+		if (interval != 0) {
+			final var hash = hash(key);
+			stripes.accumulateAndGet(index(hash), now, (tat, n) -> Math.max(tat, n) + interval);
+			stripes.accumulateAndGet(index(hash >>> 32), now, (tat, n) -> Math.max(tat, n) + interval);
+		}
+	}
+
+	private static int index(final long hash) {
+		return (int) hash & STRIPES - 1;
+	}
+
+	/**
+	 * Return the keyed hash of a key.
+	 */
+	private long hash(final String key) {
+		return ByteBuffer.wrap(macs.get().doFinal(key.getBytes(StandardCharsets.UTF_8))).getLong();
+	}
+
+	private Mac newMac() {
+		try {
+			final var mac = Mac.getInstance(HASH);
+			mac.init(secret);
+			return mac;
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to build the keyed hash of the throttle", e);
+		}
+	}
+
+	/**
+	 * Return the client address of the current request: the last address of the trusted header when configured and
+	 * present, otherwise the address of the connected client.
+	 *
+	 * @return The client address of the current request. <code>null</code> when there is no request.
+	 */
+	String getSource() {
+		if (RequestContextHolder.getRequestAttributes() instanceof ServletRequestAttributes attributes) {
+			final var request = attributes.getRequest();
+			final var header = sourceHeader;
+			final var forwarded = StringUtils.isEmpty(header) ? null : request.getHeader(header);
+			if (StringUtils.isNotBlank(forwarded)) {
+				return StringUtils.substringAfterLast("," + forwarded, ",").trim();
+			}
+			return request.getRemoteAddr();
+		}
+		return null;
+	}
+
+	/**
+	 * Return the amount of rejected attempts since the start.
+	 *
+	 * @return The amount of rejected attempts since the start.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.time.Instant;
+import java.util.List;
+
+import jakarta.transaction.Transactional;
+
+import org.ligoj.app.plugin.idsql.model.CacheSqlChange;
+import org.ligoj.bootstrap.core.dao.RestRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+/**
+ * {@link CacheSqlChange} repository
+ */
+public interface CacheSqlChangeRepository extends RestRepository<CacheSqlChange, Integer> {
+
+	/**
+	 * Return the changes made since the given date, ordered by identifier. Overlapping reads return the same changes
+	 * again, so a change committed after a change having a greater identifier is not missed.
+	 *
+	 * @param date The oldest change date to return.
+	 * @return The changes made since the given date.
+	 */
+	@Query("FROM CacheSqlChange WHERE changed >= :date ORDER BY id")
+	List<CacheSqlChange> findAllSince(@Param("date") Instant date);
+
+	/**
+	 * Delete the changes older than the given date.
+	 *
+	 * @param date The oldest change date to keep.
+	 * @return The amount of deleted changes.
+	 */
+	@Modifying
+	@Transactional
+	@Query("DELETE FROM CacheSqlChange WHERE changed < :date")
+	int deleteAllBefore(@Param("date") Instant date);
+}
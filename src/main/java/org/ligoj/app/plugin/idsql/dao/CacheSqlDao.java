@@ -0,0 +1,311 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.TypedQuery;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Streaming reader of the IAM cache tables. The rows are read as scalar projections through a read-only cursor, so
+ * no entity is attached to the persistence context, and the peak heap does not depend on the table size. The user
+ * listings can also be filtered, sorted and paged by the database.
+ */
+@Repository
+public class CacheSqlDao {
+
+	/**
+	 * Maximal amount of companies bound to a user query, within the bind parameter limits of the databases: 1000 per
+	 * list for Oracle, 2100 per statement for SQL Server.
+	 */
+	public static final int MAX_COMPANIES = 1000;
+
+	/**
+	 * Sorted columns, by sortable user property.
+	 */
+	private static final Map<String, String> ORDERS = Map.of("id", "u.id", "firstName", "u.firstName", "lastName",
+			"u.lastName", "company", "c.id", "mail", "u.mails");
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * JDBC fetch size of the cursors. Set by the <code>ligoj.id.sql.fetch-size</code> property.
+	 */
+	@Getter
+	@Setter
+	@Value("${ligoj.id.sql.fetch-size:500}")
+	private int fetchSize = 500;
+
+	/**
+	 * When <code>true</code>, the collation of the user columns is case-insensitive, so the pushed down criteria and
+	 * sorts use the columns as is, and their plain indexes. Otherwise, they use the lower-cased values, and the
+	 * function-based indexes on them. Set by the <code>ligoj.id.sql.case-insensitive-collation</code> property.
+	 */
+	@Getter
+	@Setter
+	@Value("${ligoj.id.sql.case-insensitive-collation:false}")
+	private boolean caseInsensitiveCollation;
+
+	/**
+	 * Filters of a user query.
+	 *
+	 * @param groups    The identifiers of the groups the users must be member of. May be <code>null</code> when there
+	 *                  is no constraint on group.
+	 * @param companies The identifiers of the visible companies, or of the hidden ones when <code>hidden</code> is
+	 *                  set. <code>null</code> when all companies are visible, or when there are too many to be bound.
+	 * @param hidden    <code>true</code> when <code>companies</code> are the hidden companies.
+	 * @param visible   The matcher of the visible companies, checked on each row when there are too many companies to
+	 *                  be bound. <code>null</code> otherwise.
+	 * @param criteria  The optional criteria to find in the login, the first name, the last name or the mails.
+	 */
+	public record UserFilter(Collection<String> groups, Collection<String> companies, boolean hidden,
+			Predicate<String> visible, String criteria) {
+
+		/**
+		 * Return the filters of the given visible companies. The smallest list among the visible and the hidden
+		 * companies is bound, and none when all companies are visible. Beyond {@link CacheSqlDao#MAX_COMPANIES}, no
+		 * list is bound, and the companies are checked on each row.
+		 *
+		 * @param groups   The identifiers of the required groups. May be <code>null</code>.
+		 * @param all      The identifiers of all companies.
+		 * @param visible  The matcher of the visible companies.
+		 * @param criteria The optional criteria.
+		 * @return The user filters.
+		 */
+		public static UserFilter of(final Collection<String> groups, final Collection<String> all,
+				final Predicate<String> visible, final String criteria) {
+			final var shown = all.stream().filter(visible).toList();
+			final var hidden = all.stream().filter(visible.negate()).toList();
+			if (hidden.isEmpty()) {
+				return new UserFilter(groups, null, false, null, criteria);
+			}
+			if (Math.min(shown.size(), hidden.size()) > MAX_COMPANIES) {
+				return new UserFilter(groups, null, false, visible, criteria);
+			}
+			return shown.size() <= hidden.size() ? new UserFilter(groups, shown, false, null, criteria)
+					: new UserFilter(groups, hidden, true, null, criteria);
+		}
+
+		/**
+		 * Indicates no user can match these filters.
+		 *
+		 * @return <code>true</code> when no company is visible, or when the required groups are empty.
+		 */
+		public boolean isEmpty() {
+			return companies != null && !hidden && companies.isEmpty() || groups != null && groups.isEmpty();
+		}
+	}
+
+	/**
+	 * Read all companies.
+	 *
+	 * @param consumer The row consumer. Each row contains: DN, name.
+	 */
+	@Transactional(readOnly = true)
+	public void readCompanies(final Consumer<Object[]> consumer) {
+		read("SELECT description, name FROM CacheCompany", consumer);
+	}
+
+	/**
+	 * Read all groups, then all memberships, in the same transaction.
+	 *
+	 * @param groups      The group row consumer. Each row contains: DN, name.
+	 * @param memberships The membership row consumer. Each row contains: group identifier, user identifier or
+	 *                    <code>null</code>, subgroup identifier or <code>null</code>.
+	 */
+	@Transactional(readOnly = true)
+	public void readGroups(final Consumer<Object[]> groups, final Consumer<Object[]> memberships) {
+		read("SELECT description, name FROM CacheGroup", groups);
+		read("SELECT m.group.id, u.id, s.id FROM CacheMembership m LEFT JOIN m.user u LEFT JOIN m.subGroup s",
+				memberships);
+	}
+
+	/**
+	 * Read all users with their company.
+	 *
+	 * @param consumer The row consumer. Each row contains: login, first name, last name, mails, company identifier,
+	 *                 company DN.
+	 */
+	@Transactional(readOnly = true)
+	public void readUsers(final Consumer<Object[]> consumer) {
+		read("SELECT u.id, u.firstName, u.lastName, u.mails, c.id, c.description FROM CacheUser u INNER JOIN u.company c",
+				consumer);
+	}
+
+	/**
+	 * Return a page of the users matching the given filters, sorted by the database. When there are too many companies
+	 * to be bound, the sorted rows are streamed, and the ones of the hidden companies are skipped.
+	 *
+	 * @param filter   The user filters.
+	 * @param property The sorted property, one of <code>company</code>, <code>id</code>, <code>firstName</code>,
+	 *                 <code>lastName</code> or <code>mail</code>. Ties are broken by login. The missing values come
+	 *                 first in the ascending order.
+	 * @param desc     <code>true</code> for the descending order.
+	 * @param afterKey The value of the sorted property of the last returned user, for the keyset pagination. For
+	 *                 <code>mail</code>, it is the whole mails column. Ignored when the order is by login.
+	 * @param after    The login of the last returned user. When <code>null</code>, the users are returned from the
+	 *                 first one.
+	 * @param offset   The offset of the first returned user.
+	 * @param size     The maximal amount of returned users.
+	 * @return The rows of the requested page. Each row contains: login, first name, last name, mails, company
+	 *         identifier, company DN.
+	 */
+	@Transactional(readOnly = true)
+	public List<Object[]> findUsers(final UserFilter filter, final String property, final boolean desc,
+			final String afterKey, final String after, final int offset, final int size) {
+		final var column = ORDERS.getOrDefault(property, "u.id");
+		final var sorted = toSorted(column);
+		final var nulls = "u.id".equals(column) || "c.id".equals(column) ? "" : desc ? " NULLS LAST" : " NULLS FIRST";
+		final var direction = desc ? " DESC" : " ASC";
+		final var keyset = new StringBuilder();
+		if (after != null) {
+			// Keyset condition following the same order, missing values first
+			final var next = desc ? " < " : " > ";
+			final var idAfter = "u.id" + next + ":after";
+			if ("u.id".equals(column)) {
+				keyset.append(idAfter);
+			} else if (afterKey == null) {
+				keyset.append("(").append(column).append(" IS NULL AND ").append(idAfter);
+				keyset.append(desc ? ")" : " OR " + column + " IS NOT NULL)");
+			} else {
+				keyset.append("(").append(sorted).append(next).append(":afterKey OR ").append(sorted)
+						.append(" = :afterKey AND ").append(idAfter);
+				keyset.append(desc ? " OR " + column + " IS NULL)" : ")");
+			}
+		}
+		final var orderBy = " ORDER BY " + sorted + direction + nulls + ", u.id" + direction;
+		final var query = newUserQuery("SELECT u.id, u.firstName, u.lastName, u.mails, c.id, c.description",
+				keyset.toString(), orderBy, Object[].class, filter).setHint(HibernateHints.HINT_READ_ONLY, true);
+		if (after != null) {
+			query.setParameter("after", after);
+			if (afterKey != null && !"u.id".equals(column)) {
+				query.setParameter("afterKey", caseInsensitiveCollation ? afterKey : afterKey.toLowerCase(Locale.ROOT));
+			}
+		}
+		if (filter.visible() == null) {
+			return query.setFirstResult(offset).setMaxResults(size).getResultList();
+		}
+
+		// Too many companies to be bound, skip the rows of the hidden ones
+		final var result = new ArrayList<Object[]>();
+		var skipped = 0;
+		try (var rows = query.setHint(HibernateHints.HINT_FETCH_SIZE, fetchSize).getResultStream()) {
+			final var iterator = rows.iterator();
+			while (result.size() < size && iterator.hasNext()) {
+				final var row = iterator.next();
+				if (!filter.visible().test((String) row[4])) {
+					continue;
+				}
+				if (skipped < offset) {
+					skipped++;
+				} else {
+					result.add(row);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Count the users matching the given filters. When there are too many companies to be bound, the users are
+	 * counted by company, and the counts of the visible ones are summed.
+	 *
+	 * @param filter The user filters.
+	 * @return The amount of matching users.
+	 */
+	@Transactional(readOnly = true)
+	public long countUsers(final UserFilter filter) {
+		if (filter.visible() == null) {
+			return newUserQuery("SELECT COUNT(u.id)", "", "", Long.class, filter).getSingleResult();
+		}
+		return newUserQuery("SELECT c.id, COUNT(u.id)", "", " GROUP BY c.id", Object[].class, filter)
+				.getResultList().stream().filter(r -> filter.visible().test((String) r[0]))
+				.mapToLong(r -> (Long) r[1]).sum();
+	}
+
+	/**
+	 * Return the direct memberships of the given users.
+	 *
+	 * @param users The user identifiers.
+	 * @return The rows. Each row contains: user identifier, group identifier.
+	 */
+	@Transactional(readOnly = true)
+	public List<Object[]> findMemberships(final Collection<String> users) {
+		return em.createQuery("SELECT m.user.id, m.group.id FROM CacheMembership m WHERE m.user.id IN :users",
+				Object[].class).setParameter("users", users).setHint(HibernateHints.HINT_READ_ONLY, true)
+				.getResultList();
+	}
+
+	/**
+	 * Return the sorted expression of a column. Without a case-insensitive collation, the lower-cased values are
+	 * sorted, so a function-based index on them can be used.
+	 */
+	private String toSorted(final String column) {
+		return caseInsensitiveCollation || "c.id".equals(column) ? column : "LOWER(" + column + ")";
+	}
+
+	/**
+	 * Build a user query with the given filters. The company and membership filters rely on the foreign key indexes,
+	 * the membership filter is a semi-join, so a user member of several required groups is returned once. The
+	 * criteria is compared to the columns as is with a case-insensitive collation, otherwise to their lower-cased
+	 * values.
+	 */
+	private <T> TypedQuery<T> newUserQuery(final String select, final String keyset, final String orderBy,
+			final Class<T> type, final UserFilter filter) {
+		final var query = new StringBuilder(select).append(" FROM CacheUser u INNER JOIN u.company c WHERE 1=1");
+		if (filter.companies() != null) {
+			query.append(filter.hidden() ? " AND c.id NOT IN :companies" : " AND c.id IN :companies");
+		}
+		if (filter.groups() != null) {
+			query.append(" AND EXISTS (SELECT 1 FROM CacheMembership m WHERE m.user = u AND m.group.id IN :groups)");
+		}
+		final var criteria = filter.criteria();
+		if (StringUtils.isNotEmpty(criteria)) {
+			query.append(" AND (").append(Stream.of("u.id", "u.firstName", "u.lastName", "u.mails")
+					.map(c -> toSorted(c) + " LIKE :criteria ESCAPE '!'").collect(Collectors.joining(" OR ")))
+					.append(")");
+		}
+		if (!keyset.isEmpty()) {
+			query.append(" AND ").append(keyset);
+		}
+		final var result = em.createQuery(query.append(orderBy).toString(), type);
+		if (filter.companies() != null) {
+			result.setParameter("companies", filter.companies());
+		}
+		if (filter.groups() != null) {
+			result.setParameter("groups", filter.groups());
+		}
+		if (StringUtils.isNotEmpty(criteria)) {
+			final var value = caseInsensitiveCollation ? criteria : criteria.toLowerCase(Locale.ROOT);
+			result.setParameter("criteria", "%" + value.replaceAll("([!%_])", "!$1") + "%");
+		}
+		return result;
+	}
+
+	private void read(final String query, final Consumer<Object[]> consumer) {
+		try (var rows = em.createQuery(query, Object[].class).setHint(HibernateHints.HINT_FETCH_SIZE, fetchSize)
+				.setHint(HibernateHints.HINT_READ_ONLY, true).getResultStream()) {
+			rows.forEach(consumer);
+		}
+	}
+}
@@ -3,45 +3,913 @@
  */
 package org.ligoj.app.plugin.idsql.dao;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.cache.annotation.CacheResult;
 
+import org.ligoj.app.iam.CompanyOrg;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.IamConfiguration;
 import org.ligoj.app.iam.ResourceOrg;
+import org.ligoj.app.iam.SimpleUser;
+import org.ligoj.app.iam.UserOrg;
 import org.ligoj.app.plugin.id.dao.AbstractMemCacheRepository;
+import org.ligoj.app.plugin.idsql.model.CacheSqlChange;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PreDestroy;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * SQL in memory cache with JPA back-end cache.
  */
 @Component
+@Slf4j
 public class CacheSqlRepository extends AbstractMemCacheRepository {
 
+	/**
+	 * Maximal amount of changes applied incrementally. Beyond this limit, the data are fully reloaded.
+	 */
+	private static final int MAX_CHANGES = 1000;
+
+	/**
+	 * Retention of the change journal. A node not refreshed for this duration is fully reloaded.
+	 */
+	private static final Duration CHANGE_RETENTION = Duration.ofDays(1);
+
+	/**
+	 * Overlap of the consecutive reads of the change journal. Covers the commit delay of the changes, and the clock
+	 * drift of the nodes.
+	 */
+	private static final Duration CHANGE_OVERLAP = Duration.ofMinutes(5);
+
+	/**
+	 * Minimal interval between two purges of the change journal by the same node.
+	 */
+	private static final Duration CHANGE_PURGE = Duration.ofHours(1);
+
+	/**
+	 * Default maximal amount of users held by the result cache.
+	 */
+	public static final int DEFAULT_RESULT_CACHE_SIZE = 100000;
+
+	/**
+	 * Default maximal amount of credentials held by the credential cache.
+	 */
+	public static final int DEFAULT_CREDENTIAL_CACHE_SIZE = 10000;
+
+	/**
+	 * Default time to live of the cached credentials, in seconds.
+	 */
+	public static final int DEFAULT_CREDENTIAL_CACHE_TTL = 30;
+
+	/**
+	 * Identity data read by the refresh itself before the first snapshot is published.
+	 */
+	private static final Map<CacheDataType, Map<String, ? extends ResourceOrg>> EMPTY = new EnumMap<>(
+			CacheDataType.class);
+
+	static {
+		Stream.of(CacheDataType.values()).forEach(t -> EMPTY.put(t, Map.of()));
+	}
+
 	@Autowired
 	protected CacheSqlRepository self = this;
 
 	/**
-	 * Reset the database cache with the SQL data. Note there is no synchronization for this method. Initial first
-	 * concurrent calls may not involve the cache.
+	 * The in-flight refresh shared by the concurrent callers. <code>null</code> when there is no running refresh.
+	 */
+	private final AtomicReference<CompletableFuture<Map<CacheDataType, Map<String, ? extends ResourceOrg>>>> refreshing = new AtomicReference<>();
+
+	/**
+	 * The thread running the in-flight refresh. Its own reads of the identity data during the refresh are neither
+	 * waiting nor counted.
+	 */
+	private volatile Thread refresher;
+
+	/**
+	 * Amount of executed refreshes.
+	 */
+	private final AtomicLong refreshCount = new AtomicLong();
+
+	/**
+	 * Amount of refreshes requests coalesced with the running one.
+	 */
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/**
+	 * The published identity data. Each refresh builds new maps and replaces them at once, so the readers never see a
+	 * partially applied refresh.
+	 */
+	private volatile Map<CacheDataType, Map<String, ? extends ResourceOrg>> snapshot;
+
+	/**
+	 * Timestamp of the last successful refresh. <code>0</code> when never refreshed.
+	 */
+	private volatile long refreshed;
+
+	/**
+	 * Background refresh interval, in seconds. When <code>0</code>, the data are reloaded synchronously by the
+	 * request finding them expired.
+	 */
+	private volatile int refreshInterval;
+
+	/**
+	 * Maximum age of the data in seconds, served while a background refresh is pending. Beyond this age, the data are
+	 * reloaded synchronously. Only used when {@link #refreshInterval} is enabled.
+	 */
+	private volatile int maxStaleness = 3600;
+
+	/**
+	 * Scheduler of the background refreshes. Created on demand.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * The scheduled periodic refresh.
+	 */
+	private ScheduledFuture<?> scheduled;
+
+	/**
+	 * When <code>true</code>, the changes are journaled, and the refresh only applies the changes since the previous
+	 * refresh.
+	 */
+	@Setter
+	@Value("${ligoj.id.sql.incremental:false}")
+	private volatile boolean incremental;
+
+	/**
+	 * Start of the last refresh in incremental mode. The next refresh reads the changes made since this date minus the
+	 * overlap. <code>null</code> until the first full refresh in incremental mode.
+	 */
+	private volatile Instant lastChange;
+
+	/**
+	 * Identifiers of the changes already applied within the overlap of the next read.
+	 */
+	private Set<Integer> appliedChanges = new HashSet<>();
+
+	/**
+	 * Start of the last purge of the change journal made by this node. <code>null</code> when never purged.
+	 */
+	private Instant lastPurge;
+
+	@Autowired(required = false)
+	@Setter
+	private CacheSqlChangeRepository changeRepository;
+
+	/**
+	 * Maximal amount of concurrent reads during a full reload. When <code>1</code>, the tables are read sequentially by
+	 * the refreshing thread.
+	 */
+	private volatile int parallelism = 1;
+
+	/**
+	 * Executor of the concurrent reads. Created on demand.
+	 */
+	private ExecutorService loader;
+
+	/**
+	 * Sorted views of the current user snapshot. Built on demand and maintained by the user changes.
+	 */
+	private volatile UserSqlIndex userIndex;
+
+	/**
+	 * Lock of the user index builds, so concurrent requests build it only once per snapshot.
+	 */
+	private final Object userIndexLock = new Object();
+
+	/**
+	 * Interval encoding of the current company snapshot. Built on demand and dropped by the company changes.
+	 */
+	private volatile CompanySqlIndex companyIndex;
+
+	/**
+	 * Version of the identity data, increased by each change and each refresh.
+	 */
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * Cache of the filtered and sorted users of the listing queries. <code>null</code> when disabled.
+	 */
+	private volatile UserSqlResultCache resultCache = new UserSqlResultCache(DEFAULT_RESULT_CACHE_SIZE);
+
+	/**
+	 * Cache of the credentials, by login. <code>null</code> when disabled.
+	 */
+	private volatile UserSqlCredentialCache credentialCache = new UserSqlCredentialCache(
+			DEFAULT_CREDENTIAL_CACHE_SIZE, Duration.ofSeconds(DEFAULT_CREDENTIAL_CACHE_TTL));
+
+	/**
+	 * Transaction manager used by the background refreshes.
+	 */
+	@Autowired(required = false)
+	@Setter
+	private PlatformTransactionManager transactionManager;
+
+	/**
+	 * Reset the database cache with the SQL data. Concurrent refreshes are coalesced: only one thread reloads the
+	 * data, the other ones are waiting for this refresh, or are served with the previous data when available.
 	 *
 	 * @return The cached SQL data.
 	 */
 	@Override
 	public Map<CacheDataType, Map<String, ? extends ResourceOrg>> getData() {
 		self.ensureCachedData();
-		return Optional.ofNullable(data).orElseGet(this::refreshData);
+		return Optional.ofNullable(snapshot).orElseGet(this::refreshDataOnce);
 	}
 
 	/**
-	 * Ensure the fresh data computed when there is no cached SQL data.
+	 * Ensure the fresh data computed when there is no cached SQL data. When the background refresh is enabled, and the
+	 * current data are not too stale, they are still served, and the refresh is done by another thread.
 	 *
 	 * @return <code>true</code>, required by JSR-107.
 	 */
 	@CacheResult(cacheName = "id-sql-data")
 	public boolean ensureCachedData() {
-		refreshData();
+		if (isServingStale()) {
+			// Stale while revalidate
+			getScheduler().execute(this::refreshInBackground);
+		} else {
+			refreshDataOnce();
+		}
 		return true;
 	}
+
+	/**
+	 * Indicate the current data can be served while a background refresh is running.
+	 *
+	 * @return <code>true</code> when the current data can be served.
+	 */
+	private boolean isServingStale() {
+		return refreshInterval > 0 && snapshot != null
+				&& System.currentTimeMillis() - refreshed < TimeUnit.SECONDS.toMillis(maxStaleness);
+	}
+
+	/**
+	 * Configure the refresh policy. Initialized from the <code>ligoj.id.sql.refresh-interval</code> and
+	 * <code>ligoj.id.sql.max-staleness</code> properties, shared by all the nodes.
+	 *
+	 * @param refreshInterval Background refresh interval, in seconds. When <code>0</code>, the background refresh is
+	 *                        disabled, and the data are reloaded synchronously by the request finding them expired.
+	 * @param maxStaleness    Maximum age of the data in seconds, served while a background refresh is pending.
+	 */
+	@Autowired
+	public synchronized void configure(@Value("${ligoj.id.sql.refresh-interval:0}") final int refreshInterval,
+			@Value("${ligoj.id.sql.max-staleness:3600}") final int maxStaleness) {
+		this.maxStaleness = maxStaleness;
+		if (this.refreshInterval == refreshInterval) {
+			// Unchanged interval, keep the current schedule
+			return;
+		}
+		this.refreshInterval = refreshInterval;
+		if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+		if (refreshInterval > 0) {
+			log.info("Identity data will be refreshed in background every {}s", refreshInterval);
+			scheduled = getScheduler().scheduleWithFixedDelay(this::refreshInBackground, refreshInterval,
+					refreshInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	private synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				final var thread = new Thread(r, "id-sql-refresh");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Configure the amount of concurrent reads during a full reload.
+	 *
+	 * @param parallelism The maximal amount of concurrent reads. When <code>1</code>, the tables are read sequentially
+	 *                    by the refreshing thread.
+	 */
+	@Value("${ligoj.id.sql.refresh-parallelism:1}")
+	public synchronized void setParallelism(final int parallelism) {
+		if (this.parallelism != parallelism) {
+			this.parallelism = parallelism;
+			if (loader != null) {
+				loader.shutdown();
+				loader = null;
+			}
+		}
+	}
+
+	/**
+	 * Configure the result cache of the listing queries.
+	 *
+	 * @param size The maximal amount of users held by the cache. When <code>0</code>, the cache is disabled.
+	 */
+	@Value("${ligoj.id.sql.result-cache-size:" + DEFAULT_RESULT_CACHE_SIZE + "}")
+	public synchronized void setResultCacheSize(final int size) {
+		final var cache = resultCache;
+		if (size <= 0) {
+			resultCache = null;
+		} else if (cache == null || cache.getMaxWeight() != size) {
+			resultCache = new UserSqlResultCache(size);
+		}
+	}
+
+	/**
+	 * Return the result cache of the listing queries.
+	 *
+	 * @return The result cache of the listing queries. <code>null</code> when disabled.
+	 */
+	public UserSqlResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Configure the credential cache. Initialized from the <code>ligoj.id.sql.credential-cache-*</code> properties,
+	 * shared by all the nodes.
+	 *
+	 * @param size The maximal amount of credentials held by the cache. When <code>0</code>, the cache is disabled.
+	 * @param ttl  The time to live of the cached credentials, in seconds. Bounds the time a credential changed by
+	 *             another node is served by this one. When <code>0</code>, the cache is disabled.
+	 */
+	@Autowired
+	public synchronized void configureCredentialCache(
+			@Value("${ligoj.id.sql.credential-cache-size:" + DEFAULT_CREDENTIAL_CACHE_SIZE + "}") final int size,
+			@Value("${ligoj.id.sql.credential-cache-ttl:" + DEFAULT_CREDENTIAL_CACHE_TTL + "}") final int ttl) {
+		final var cache = credentialCache;
+		if (size <= 0 || ttl <= 0) {
+			credentialCache = null;
+		} else if (cache == null || cache.getMaxSize() != size || cache.getTtl().getSeconds() != ttl) {
+			credentialCache = new UserSqlCredentialCache(size, Duration.ofSeconds(ttl));
+		}
+	}
+
+	/**
+	 * Return the credential cache. Cleared by the full reloads, invalidated by the applied user changes, and expired
+	 * after its time to live.
+	 *
+	 * @return The credential cache. <code>null</code> when disabled.
+	 */
+	public UserSqlCredentialCache getCredentialCache() {
+		return credentialCache;
+	}
+
+	/**
+	 * Return the version of the identity data, increased by each change and each refresh publishing new data. The
+	 * results computed from a previous version are outdated.
+	 *
+	 * @return The version of the identity data.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	private synchronized ExecutorService getLoader() {
+		if (loader == null) {
+			final var counter = new AtomicInteger();
+			loader = Executors.newFixedThreadPool(parallelism, r -> {
+				final var thread = new Thread(r, "id-sql-load-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return loader;
+	}
+
+	/**
+	 * Reload all data. When enabled, the independent reads of the groups and the users are started by other threads in
+	 * separated read-only transactions, and consumed by the same reload as the sequential one, so both modes have the
+	 * same side effects.
+	 *
+	 * @return The reloaded data.
+	 */
+	private Map<CacheDataType, Map<String, ? extends ResourceOrg>> loadData() {
+		if (parallelism <= 1) {
+			return refreshData();
+		}
+		log.info("Fetching identity data with {} concurrent reads ...", parallelism);
+		final var groupRepository = getGroupSql();
+		final var userRepository = getUserSql();
+		final var executor = getLoader();
+		groupRepository.prefetch(executor);
+		userRepository.prefetch(executor);
+		try {
+			return refreshData();
+		} finally {
+			// Drop the reads not consumed by a failed reload
+			groupRepository.prefetch(null);
+			userRepository.prefetch(null);
+		}
+	}
+
+	/**
+	 * Build a new snapshot of the data and swap it with the current one. The failures are logged, and the current data
+	 * are still served.
+	 */
+	protected void refreshInBackground() {
+		try {
+			if (transactionManager == null) {
+				refreshDataOnce();
+			} else {
+				new TransactionTemplate(transactionManager).executeWithoutResult(s -> refreshDataOnce());
+			}
+		} catch (final RuntimeException e) {
+			log.error("Background refresh of identity data failed", e);
+		}
+	}
+
+	/**
+	 * Stop the background refreshes and the concurrent reads.
+	 */
+	@PreDestroy
+	public synchronized void destroy() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+			scheduled = null;
+		}
+		if (loader != null) {
+			loader.shutdownNow();
+			loader = null;
+		}
+	}
+
+	/**
+	 * Refresh the data, or join the refresh already running in another thread.
+	 *
+	 * @return The refreshed data, or the previous one when another thread is refreshing it.
+	 */
+	protected Map<CacheDataType, Map<String, ? extends ResourceOrg>> refreshDataOnce() {
+		final var future = new CompletableFuture<Map<CacheDataType, Map<String, ? extends ResourceOrg>>>();
+		final var running = refreshing.compareAndExchange(null, future);
+		if (running != null) {
+			if (refresher == Thread.currentThread()) {
+				// Read made by the refresh itself, such as the credential of a reloaded user. Nothing is published
+				// during the first load.
+				return Optional.ofNullable(snapshot).orElse(EMPTY);
+			}
+
+			// Another thread is refreshing the data
+			coalescedCount.incrementAndGet();
+			return Optional.ofNullable(snapshot).orElseGet(() -> join(running));
+		}
+
+		// This thread is the one refreshing the data
+		try {
+			refresher = Thread.currentThread();
+			refreshCount.incrementAndGet();
+			final var changed = incremental && snapshot != null && lastChange != null ? refreshChanges() : refreshAll();
+			final var result = Optional.ofNullable(changed).orElse(snapshot);
+			if (changed != null) {
+				data = result;
+				snapshot = result;
+				version.incrementAndGet();
+			}
+			refreshed = System.currentTimeMillis();
+			future.complete(result);
+			return result;
+		} catch (final RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			refresher = null;
+			refreshing.set(null);
+		}
+	}
+
+	/**
+	 * Reload all data.
+	 *
+	 * @return The reloaded data.
+	 */
+	private Map<CacheDataType, Map<String, ? extends ResourceOrg>> refreshAll() {
+		Optional.ofNullable(credentialCache).ifPresent(UserSqlCredentialCache::clear);
+		if (!incremental) {
+			lastChange = null;
+			return loadData();
+		}
+
+		// Changes made during this reload will be applied again by the next refresh
+		final var start = Instant.now();
+		final var result = loadData();
+		purgeChanges(start);
+		lastChange = start;
+		appliedChanges = new HashSet<>();
+		return result;
+	}
+
+	/**
+	 * Delete the changes beyond the retention of the journal, at most once per purge interval.
+	 */
+	private void purgeChanges(final Instant now) {
+		if (lastPurge == null || !now.isBefore(lastPurge.plus(CHANGE_PURGE))) {
+			changeRepository.deleteAllBefore(now.minus(CHANGE_RETENTION));
+			lastPurge = now;
+		}
+	}
+
+	/**
+	 * Apply the journaled changes since the previous refresh to copies of the current data. The unchanged resources are
+	 * not reloaded, and are shared with the current data. The current data are never modified, so they can still be
+	 * read while the changes are applied.
+	 *
+	 * @return The updated data to be published, or <code>null</code> when there is no new change.
+	 */
+	private Map<CacheDataType, Map<String, ? extends ResourceOrg>> refreshChanges() {
+		final var start = Instant.now();
+		final var since = lastChange.minus(CHANGE_OVERLAP);
+		if (since.isBefore(start.minus(CHANGE_RETENTION))) {
+			// The changes made since the last refresh may have been purged
+			log.info("Identity changes since {} may be purged, full reload", since);
+			return refreshAll();
+		}
+		purgeChanges(start);
+		final var read = changeRepository.findAllSince(since);
+		final var changes = read.stream().filter(c -> !appliedChanges.contains(c.getId())).toList();
+		if (changes.isEmpty()) {
+			// Nothing to apply, the current data are kept
+			lastChange = start;
+			appliedChanges = read.stream().map(CacheSqlChange::getId).collect(Collectors.toSet());
+			return null;
+		}
+		if (changes.size() > MAX_CHANGES) {
+			log.info("Too many identity changes ({}), full reload", changes.size());
+			return refreshAll();
+		}
+
+		// Deduplicate the changed resources
+		final Set<String> changedUsers = new LinkedHashSet<>();
+		final Set<String> changedGroups = new LinkedHashSet<>();
+		boolean changedCompanies = false;
+		for (final CacheSqlChange change : changes) {
+			switch (change.getType()) {
+			case COMPANY -> changedCompanies = true;
+			case GROUP -> changedGroups.add(change.getResource());
+			default -> changedUsers.add(change.getResource());
+			}
+		}
+
+		// Apply the changes: companies, groups, then the users relying on the groups
+		final var current = snapshot;
+		final var currentUsers = getUsers(current);
+		final Map<String, CompanyOrg> companies = changedCompanies ? getCompanySql().findAllNoCache()
+				: getCompanies(current);
+		final Map<String, GroupOrg> groups = new HashMap<>(getGroups(current));
+		final Map<String, UserOrg> users = new HashMap<>(currentUsers);
+		final Set<String> reindexed = new HashSet<>(changedUsers);
+		changedGroups.forEach(id -> refreshGroup(groups, users, id, reindexed));
+		changedUsers.forEach(id -> refreshUser(groups, users, id));
+		lastChange = start;
+		appliedChanges = read.stream().map(CacheSqlChange::getId).collect(Collectors.toSet());
+		final Map<CacheDataType, Map<String, ? extends ResourceOrg>> result = new EnumMap<>(CacheDataType.class);
+		result.put(CacheDataType.COMPANY, companies);
+		result.put(CacheDataType.GROUP, groups);
+		result.put(CacheDataType.USER, users);
+		if (changedCompanies) {
+			companyIndex = null;
+		}
+
+		// Move the user index to the new users
+		final var index = userIndex;
+		if (index != null && index.isIndexing(currentUsers)) {
+			index.rebind(users);
+			index.refresh(reindexed);
+			changedGroups.forEach(index::invalidateGroup);
+		}
+		log.info("Identity data refreshed with {} changes", changes.size());
+		return result;
+	}
+
+	/**
+	 * Replace a changed group, its previous and new parents, and the users whose memberships changed with updated
+	 * copies.
+	 */
+	private void refreshGroup(final Map<String, GroupOrg> groups, final Map<String, UserOrg> users, final String id,
+			final Set<String> reindexed) {
+		final var previous = groups.get(id);
+		final var group = getGroupSql().findByIdNoCache(id);
+
+		// Update the memberships of the users
+		final Set<String> before = previous == null ? Set.of() : previous.getMembers();
+		final Set<String> after = group == null ? Set.of() : group.getMembers();
+		Stream.concat(before.stream(), after.stream()).filter(m -> before.contains(m) != after.contains(m))
+				.filter(users::containsKey).distinct().forEach(m -> {
+					final var user = copy(users.get(m));
+					if (after.contains(m)) {
+						user.getGroups().add(id);
+					} else {
+						user.getGroups().remove(id);
+					}
+					users.put(m, user);
+					reindexed.add(m);
+				});
+		if (group == null) {
+			groups.remove(id);
+		} else {
+			groups.put(id, group);
+		}
+
+		// Reload the parents having gained or lost this subgroup
+		Stream.of(previous, group).filter(Objects::nonNull).map(GroupOrg::getParent).filter(Objects::nonNull)
+				.distinct().toList().forEach(p -> reloadGroup(groups, p));
+	}
+
+	/**
+	 * Replace a group not changed by itself, but by one of its subgroups or members.
+	 */
+	private void reloadGroup(final Map<String, GroupOrg> groups, final String id) {
+		if (groups.containsKey(id)) {
+			Optional.ofNullable(getGroupSql().findByIdNoCache(id)).ifPresentOrElse(g -> groups.put(id, g),
+					() -> groups.remove(id));
+		}
+	}
+
+	/**
+	 * Replace a changed user with a new instance. The groups of a deleted user are replaced without this member.
+	 */
+	private void refreshUser(final Map<String, GroupOrg> groups, final Map<String, UserOrg> users, final String id) {
+		Optional.ofNullable(credentialCache).ifPresent(c -> c.invalidate(id));
+		final var user = getUserSql().findByIdNoCache(id);
+		if (user == null) {
+			users.remove(id);
+			groups.values().stream().filter(g -> g.getMembers().contains(id)).map(GroupOrg::getId).toList()
+					.forEach(g -> reloadGroup(groups, g));
+		} else {
+			user.setGroups(new ArrayList<>(groups.values().stream().filter(g -> g.getMembers().contains(id))
+					.map(GroupOrg::getId).toList()));
+			users.put(id, user);
+		}
+	}
+
+	/**
+	 * Return a copy of a user with its own mails and memberships lists.
+	 *
+	 * @param user The user to copy.
+	 * @return A new user, not shared with the cached data.
+	 */
+	static UserOrg copy(final UserOrg user) {
+		final var result = new UserOrg();
+		user.copy((SimpleUser) result);
+		result.setDn(user.getDn());
+		result.setMails(user.getMails() == null ? null : new ArrayList<>(user.getMails()));
+		result.setLocked(user.getLocked());
+		result.setLockedBy(user.getLockedBy());
+		result.setIsolated(user.getIsolated());
+		result.setSecured(user.isSecured());
+		result.setGroups(user.getGroups() == null ? new ArrayList<>() : new ArrayList<>(user.getGroups()));
+		return result;
+	}
+
+	/**
+	 * Return the sorted views of the current user snapshot. Rebuilt when the snapshot has been replaced, by a single
+	 * thread: the concurrent requests wait for this build.
+	 *
+	 * @return The sorted views of the current users.
+	 */
+	@SuppressWarnings("unchecked")
+	public UserSqlIndex getUserIndex() {
+		final var users = (Map<String, UserOrg>) getData().get(CacheDataType.USER);
+		var index = userIndex;
+		if (index == null || !index.isIndexing(users)) {
+			synchronized (userIndexLock) {
+				index = userIndex;
+				if (index == null || !index.isIndexing(users)) {
+					index = new UserSqlIndex(users, UserSqlRepository.COMPARATORS);
+					userIndex = index;
+					version.incrementAndGet();
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Return the interval encoding of the current company snapshot. Rebuilt when the snapshot has been replaced or
+	 * changed.
+	 *
+	 * @return The interval encoding of the current companies.
+	 */
+	@SuppressWarnings("unchecked")
+	public CompanySqlIndex getCompanyIndex() {
+		final var companies = (Map<String, CompanyOrg>) getData().get(CacheDataType.COMPANY);
+		var index = companyIndex;
+		if (index == null || !index.isIndexing(companies)) {
+			index = new CompanySqlIndex(companies);
+			companyIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Update the rank of a created, updated or deleted user in the sorted views of the current snapshot.
+	 */
+	private void indexUser(final String id) {
+		final var index = userIndex;
+		if (index != null && index.isIndexing(getUsers(snapshot))) {
+			index.refresh(id);
+		}
+	}
+
+	/**
+	 * Drop the members bitmap of a changed group in the user index of the current snapshot.
+	 */
+	private void indexGroup(final String id) {
+		final var index = userIndex;
+		if (index != null) {
+			index.invalidateGroup(id);
+		}
+	}
+
+	/**
+	 * Journal a change of a resource, so the other nodes apply it in the incremental mode. The version of the identity
+	 * data is increased.
+	 *
+	 * @param type     The changed resource type.
+	 * @param resource The changed resource identifier.
+	 */
+	public void journal(final CacheDataType type, final String resource) {
+		version.incrementAndGet();
+		if (incremental) {
+			changeRepository.save(new CacheSqlChange(type, resource));
+		}
+	}
+
+	@Override
+	public CompanyOrg create(final CompanyOrg company) {
+		final var result = super.create(company);
+		companyIndex = null;
+		journal(CacheDataType.COMPANY, company.getId());
+		return result;
+	}
+
+	@Override
+	public GroupOrg create(final GroupOrg group) {
+		final var result = super.create(group);
+		journal(CacheDataType.GROUP, group.getId());
+		return result;
+	}
+
+	@Override
+	public UserOrg create(final UserOrg user) {
+		final var result = super.create(user);
+		indexUser(user.getId());
+		journal(CacheDataType.USER, user.getId());
+		return result;
+	}
+
+	@Override
+	public void update(final UserOrg user) {
+		super.update(user);
+		indexUser(user.getId());
+		journal(CacheDataType.USER, user.getId());
+	}
+
+	@Override
+	public void delete(final CompanyOrg company) {
+		super.delete(company);
+		companyIndex = null;
+		journal(CacheDataType.COMPANY, company.getId());
+	}
+
+	@Override
+	public void delete(final GroupOrg group) {
+		super.delete(group);
+		indexGroup(group.getId());
+		journal(CacheDataType.GROUP, group.getId());
+	}
+
+	@Override
+	public void delete(final UserOrg user) {
+		super.delete(user);
+		indexUser(user.getId());
+		journal(CacheDataType.USER, user.getId());
+	}
+
+	@Override
+	public void empty(final GroupOrg group, final Map<String, UserOrg> users) {
+		super.empty(group, users);
+		indexGroup(group.getId());
+		journal(CacheDataType.GROUP, group.getId());
+	}
+
+	@Override
+	public void addUserToGroup(final UserOrg user, final GroupOrg group) {
+		super.addUserToGroup(user, group);
+		indexGroup(group.getId());
+		journal(CacheDataType.GROUP, group.getId());
+	}
+
+	@Override
+	public void removeUserFromGroup(final UserOrg user, final GroupOrg group) {
+		super.removeUserFromGroup(user, group);
+		indexGroup(group.getId());
+		journal(CacheDataType.GROUP, group.getId());
+	}
+
+	@Override
+	public void addGroupToGroup(final GroupOrg subGroup, final GroupOrg group) {
+		super.addGroupToGroup(subGroup, group);
+		journal(CacheDataType.GROUP, subGroup.getId());
+		journal(CacheDataType.GROUP, group.getId());
+	}
+
+	@Override
+	public void removeGroupFromGroup(final GroupOrg subGroup, final GroupOrg group) {
+		super.removeGroupFromGroup(subGroup, group);
+		journal(CacheDataType.GROUP, subGroup.getId());
+		journal(CacheDataType.GROUP, group.getId());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, CompanyOrg> getCompanies(
+			final Map<CacheDataType, Map<String, ? extends ResourceOrg>> current) {
+		return (Map<String, CompanyOrg>) current.get(CacheDataType.COMPANY);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, GroupOrg> getGroups(
+			final Map<CacheDataType, Map<String, ? extends ResourceOrg>> current) {
+		return (Map<String, GroupOrg>) current.get(CacheDataType.GROUP);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, UserOrg> getUsers(final Map<CacheDataType, Map<String, ? extends ResourceOrg>> current) {
+		return current == null ? null : (Map<String, UserOrg>) current.get(CacheDataType.USER);
+	}
+
+	private IamConfiguration getConfiguration() {
+		return iamProvider[0].getConfiguration();
+	}
+
+	private CompanySqlRepository getCompanySql() {
+		return (CompanySqlRepository) getConfiguration().getCompanyRepository();
+	}
+
+	private GroupSqlRepository getGroupSql() {
+		return (GroupSqlRepository) getConfiguration().getGroupRepository();
+	}
+
+	private UserSqlRepository getUserSql() {
+		return (UserSqlRepository) getConfiguration().getUserRepository();
+	}
+
+	/**
+	 * Wait for the running refresh and return its result, or throw its original failure.
+	 */
+	private Map<CacheDataType, Map<String, ? extends ResourceOrg>> join(
+			final CompletableFuture<Map<CacheDataType, Map<String, ? extends ResourceOrg>>> running) {
+		try {
+			return running.join();
+		} catch (final CompletionException e) {
+			log.info("Joined identity refresh failed: {}", e.getCause().getMessage());
+			throw FutureUtils.unchecked(e.getCause());
+		}
+	}
+
+	/**
+	 * Return the amount of executed refreshes since the start.
+	 *
+	 * @return The amount of executed refreshes since the start.
+	 */
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	/**
+	 * Return the amount of refresh requests coalesced with a running one since the start.
+	 *
+	 * @return The amount of refresh requests coalesced with a running one since the start.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
 }
@@ -0,0 +1,107 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.ligoj.app.iam.CompanyOrg;
+
+/**
+ * Interval encoding of a company snapshot. Companies are numbered in the depth-first order of the hierarchy, so the
+ * descendants of a company, including itself, are the contiguous numbers from its own number to its last descendant
+ * number. Checking a company is under another becomes an interval test instead of a walk of its ancestors.
+ */
+public class CompanySqlIndex {
+
+	/**
+	 * The indexed snapshot.
+	 */
+	private final Map<String, CompanyOrg> companies;
+
+	/**
+	 * Depth-first number of each company.
+	 */
+	private final Map<String, Integer> ranks = new HashMap<>();
+
+	/**
+	 * Greatest depth-first number of the descendants of each company, including itself.
+	 */
+	private final Map<String, Integer> lasts = new HashMap<>();
+
+	/**
+	 * Number the given companies.
+	 *
+	 * @param companies The indexed snapshot. Key is the company identifier.
+	 */
+	public CompanySqlIndex(final Map<String, CompanyOrg> companies) {
+		this.companies = companies;
+
+		// The parent of a company is the closest existing ancestor
+		final Map<String, List<String>> children = new HashMap<>();
+		final List<String> roots = new ArrayList<>();
+		companies.values().forEach(c -> {
+			final var tree = c.getCompanyTree();
+			final var parent = tree == null || tree.size() < 2 ? null : tree.get(tree.size() - 2).getId();
+			if (parent == null || !companies.containsKey(parent)) {
+				roots.add(c.getId());
+			} else {
+				children.computeIfAbsent(parent, k -> new ArrayList<>()).add(c.getId());
+			}
+		});
+
+		// Depth-first numbering, the last number is set when the company is left
+		final var stack = new ArrayDeque<String>();
+		roots.forEach(stack::push);
+		var rank = 0;
+		while (!stack.isEmpty()) {
+			final var id = stack.pop();
+			if (ranks.containsKey(id)) {
+				lasts.put(id, rank - 1);
+			} else {
+				ranks.put(id, rank++);
+				stack.push(id);
+				children.getOrDefault(id, List.of()).forEach(stack::push);
+			}
+		}
+	}
+
+	/**
+	 * Indicates this index has been built from the given snapshot.
+	 *
+	 * @param companies The current snapshot.
+	 * @return <code>true</code> when this index is built from the given snapshot.
+	 */
+	public boolean isIndexing(final Map<String, CompanyOrg> companies) {
+		return this.companies == companies;
+	}
+
+	/**
+	 * Return a matcher of the companies equal to or under one of the given companies.
+	 *
+	 * @param visible The visible company identifiers.
+	 * @return The matcher of a company identifier. Same result as checking whether the company tree contains one of
+	 *         the visible companies.
+	 */
+	public Predicate<String> newMatcher(final Set<String> visible) {
+		final var bits = new BitSet(ranks.size());
+		visible.stream().filter(ranks::containsKey).forEach(c -> bits.set(ranks.get(c), lasts.get(c) + 1));
+		return company -> {
+			final var rank = ranks.get(company);
+			if (rank == null) {
+				// Not indexed company, walk its ancestors
+				return Optional.ofNullable(companies.get(company)).map(CompanyOrg::getCompanyTree)
+						.map(t -> t.stream().map(CompanyOrg::getId).anyMatch(visible::contains)).orElse(false);
+			}
+			return bits.get(rank);
+		};
+	}
+}
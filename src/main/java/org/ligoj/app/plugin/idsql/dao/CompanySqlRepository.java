@@ -3,8 +3,9 @@
  */
 package org.ligoj.app.plugin.idsql.dao;
 
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -37,6 +38,9 @@ public class CompanySqlRepository extends AbstractContainerSqlRepository<Company
 	@Autowired
 	private CacheCompanyRepository cacheCompanyRepository;
 
+	@Autowired
+	private CacheSqlDao cacheSqlDao;
+
 	/**
 	 * Default constructor for a container of type {@link ContainerType#COMPANY}
 	 */
@@ -70,19 +74,21 @@ public class CompanySqlRepository extends AbstractContainerSqlRepository<Company
 	@Override
 	public Map<String, CompanyOrg> findAllNoCache() {
 		final Map<String, CompanyOrg> result = new HashMap<>();
-		for (final CacheCompany companyRaw : cacheCompanyRepository.findAll()) {
-			final CompanyOrg company = new CompanyOrg(companyRaw.getDescription(), companyRaw.getName());
+		cacheSqlDao.readCompanies(r -> {
+			final CompanyOrg company = new CompanyOrg((String) r[0], (String) r[1]);
 			result.put(company.getId(), company);
-		}
+		});
 
 		// Also add/replace the quarantine zone
 		final CompanyOrg quarantine = new CompanyOrg(QUARANTINE_DN, getQuarantineCompany());
 		quarantine.setLocked(true);
 		result.put(quarantine.getId(), quarantine);
 
-		// The complete the hierarchy of companies
+		// The complete the hierarchy of companies from the parent DN of each one
 		result.values().forEach(this::buildLdapName);
-		result.values().forEach(c -> this.buildHierarchy(result, c));
+		final Map<LdapName, CompanyOrg> byDn = new HashMap<>();
+		result.values().forEach(c -> byDn.put(c.getLdapName(), c));
+		result.values().forEach(c -> this.buildHierarchy(byDn, c));
 		return result;
 	}
 
@@ -108,13 +114,24 @@ public class CompanySqlRepository extends AbstractContainerSqlRepository<Company
 	}
 
 	/**
-	 * Build the company hierarchy from the given {@link CompanyOrg}
+	 * Build the company hierarchy from the given {@link CompanyOrg} by walking its ancestor DNs, sorted from the root
+	 * to the leaf.
+	 *
+	 * @param companies The companies indexed by their DN. Since {@link LdapName} equality is case-insensitive, no
+	 *                  additional normalization is required.
+	 * @param company   The company to complete.
 	 */
-	private void buildHierarchy(final Map<String, CompanyOrg> companies, final CompanyOrg company) {
-		// Collect all parents and sorted from parent to the leaf
-		company.setCompanyTree(
-				companies.values().stream().filter(c -> DnUtils.equalsOrParentOf(c.getDn(), company.getDn()))
-						.sorted(Comparator.comparing(CompanyOrg::getLdapName)).toList());
+	private void buildHierarchy(final Map<LdapName, CompanyOrg> companies, final CompanyOrg company) {
+		final LdapName dn = company.getLdapName();
+		final List<CompanyOrg> tree = new ArrayList<>(dn.size());
+		for (int i = 1; i < dn.size(); i++) {
+			final CompanyOrg parent = companies.get((LdapName) dn.getPrefix(i));
+			if (parent != null) {
+				tree.add(parent);
+			}
+		}
+		tree.add(company);
+		company.setCompanyTree(tree);
 	}
 
 	/**
@@ -0,0 +1,42 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+/**
+ * Case folding utilities. A folded string can be searched with a plain {@link String#contains(CharSequence)} with the
+ * same result as a case-insensitive region match, such as {@link org.apache.commons.lang3.Strings#CI}.
+ */
+public final class FoldUtils {
+
+	private FoldUtils() {
+		// Utility class
+	}
+
+	/**
+	 * Fold a character the same way a case-insensitive region match compares them.
+	 *
+	 * @param c The character to fold.
+	 * @return The folded character.
+	 */
+	public static char fold(final char c) {
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	/**
+	 * Fold a string the same way a case-insensitive region match compares them.
+	 *
+	 * @param value The string to fold. May be <code>null</code>.
+	 * @return The folded string, or <code>null</code>.
+	 */
+	public static String fold(final String value) {
+		if (value == null) {
+			return null;
+		}
+		final var chars = value.toCharArray();
+		for (var i = 0; i < chars.length; i++) {
+			chars[i] = fold(chars[i]);
+		}
+		return new String(chars);
+	}
+}
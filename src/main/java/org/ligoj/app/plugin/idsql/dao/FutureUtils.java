@@ -0,0 +1,49 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Failure propagation of the tasks executed by another thread.
+ */
+final class FutureUtils {
+
+	private FutureUtils() {
+		// Utility class
+	}
+
+	/**
+	 * Return the failure of a task to be thrown by the waiting thread. The errors are rethrown as is, the runtime
+	 * exceptions are returned as is, and the other ones are wrapped.
+	 *
+	 * @param cause The failure of the task.
+	 * @return The unchecked failure to throw.
+	 */
+	static RuntimeException unchecked(final Throwable cause) {
+		if (cause instanceof Error error) {
+			throw error;
+		}
+		if (cause instanceof RuntimeException exception) {
+			return exception;
+		}
+		return new IllegalStateException(cause);
+	}
+
+	/**
+	 * Wait for a task and return its result, or throw its original failure.
+	 *
+	 * @param future The task.
+	 * @param <T>    The result type.
+	 * @return The task result.
+	 */
+	static <T> T join(final CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (final CompletionException e) {
+			throw unchecked(e.getCause());
+		}
+	}
+}
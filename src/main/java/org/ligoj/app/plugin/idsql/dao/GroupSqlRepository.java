@@ -17,6 +17,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Group SQL repository
@@ -31,6 +34,15 @@ public class GroupSqlRepository extends AbstractContainerSqlRepository<GroupOrg,
 	@Autowired
 	private CacheMembershipRepository cacheMembershipRepository;
 
+	@Autowired
+	private CacheSqlDao cacheSqlDao;
+
+	/**
+	 * Groups read by another thread, returned by the next {@link #findAllNoCache()}. <code>null</code> when there is
+	 * no pending read.
+	 */
+	private final AtomicReference<CompletableFuture<Map<String, GroupOrg>>> prefetched = new AtomicReference<>();
+
 	/**
 	 * Default constructor for a container of type {@link ContainerType#GROUP}
 	 */
@@ -65,29 +77,72 @@ public class GroupSqlRepository extends AbstractContainerSqlRepository<GroupOrg,
 	 */
 	@Override
 	public Map<String, GroupOrg> findAllNoCache() {
+		return Optional.ofNullable(prefetched.getAndSet(null)).map(FutureUtils::join).orElseGet(this::readAll);
+	}
+
+	/**
+	 * Start reading all groups with the given executor. The result is returned by the next {@link #findAllNoCache()}
+	 * call, so this read runs concurrently with the other reads of a full reload.
+	 *
+	 * @param executor The executor of the read. When <code>null</code>, the pending read is dropped.
+	 */
+	public void prefetch(final Executor executor) {
+		prefetched.set(executor == null ? null : CompletableFuture.supplyAsync(this::readAll, executor));
+	}
+
+	private Map<String, GroupOrg> readAll() {
 		final Map<String, GroupOrg> groups = new HashMap<>();
 
-		// Collect all groups
-		for (final CacheGroup groupRaw : cacheGroupRepository.findAll()) {
-			final GroupOrg group = newContainer(groupRaw.getDescription(), groupRaw.getName());
+		// Collect all groups, then complete them with their memberships
+		cacheSqlDao.readGroups(r -> {
+			final GroupOrg group = newContainer((String) r[0], (String) r[1]);
 			groups.put(group.getId(), group);
+		}, r -> {
+			final GroupOrg group = groups.get((String) r[0]);
+			if (group == null) {
+				// Group created after the read of the groups
+				return;
+			}
+			if (r[1] == null) {
+				// Subgroup membership
+				group.getSubGroups().add((String) r[2]);
+
+				// Complete the inverse relationship
+				Optional.ofNullable(groups.get((String) r[2])).ifPresent(s -> s.setParent(group.getId()));
+			} else {
+				// User membership
+				group.getMembers().add((String) r[1]);
+			}
+		});
+		return groups;
+	}
+
+	/**
+	 * Fetch and return a group with its memberships and its parent, without involving the cache.
+	 *
+	 * @param id The group identifier.
+	 * @return The group or <code>null</code> when not found.
+	 */
+	public GroupOrg findByIdNoCache(final String id) {
+		final CacheGroup groupRaw = cacheGroupRepository.findOne(id);
+		if (groupRaw == null) {
+			return null;
 		}
+		final GroupOrg group = newContainer(groupRaw.getDescription(), groupRaw.getName());
 
 		// Complete with memberships
-		for (final CacheMembership membership : cacheMembershipRepository.findAll()) {
-			final GroupOrg group = groups.get(membership.getGroup().getId());
+		for (final CacheMembership membership : cacheMembershipRepository.findAllBy("group.id", id)) {
 			if (membership.getUser() == null) {
-				// Subgroup membership
 				group.getSubGroups().add(membership.getSubGroup().getId());
-
-				// Complete the inverse relationship
-				groups.get(membership.getSubGroup().getId()).setParent(group.getId());
 			} else {
-				// User membership
 				group.getMembers().add(membership.getUser().getId());
 			}
 		}
-		return groups;
+
+		// Complete the inverse relationship
+		cacheMembershipRepository.findAllBy("subGroup.id", id).stream().findFirst()
+				.ifPresent(m -> group.setParent(m.getGroup().getId()));
+		return group;
 	}
 
 	private void removeFromJavaCache(final GroupOrg group) {
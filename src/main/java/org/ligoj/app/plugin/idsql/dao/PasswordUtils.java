@@ -0,0 +1,115 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.ligoj.bootstrap.core.resource.TechnicalException;
+
+/**
+ * PBKDF2 password hashing utilities. The secret key factories are kept per thread and per algorithm, so the JCA
+ * provider lookup is done once per thread instead of once per hash. The derived keys are compared in constant time
+ * with the decoded stored value, and the sensitive buffers are wiped after use.
+ */
+public final class PasswordUtils {
+
+	/**
+	 * Secret key factories of the current thread, by algorithm. A factory is not thread safe.
+	 */
+	private static final ThreadLocal<Map<String, SecretKeyFactory>> FACTORIES = ThreadLocal.withInitial(HashMap::new);
+
+	private PasswordUtils() {
+		// Utility class
+	}
+
+	/**
+	 * Return the secret key factory of the given algorithm, bound to the current thread.
+	 */
+	private static SecretKeyFactory getFactory(final String algorithm) throws NoSuchAlgorithmException {
+		final var factories = FACTORIES.get();
+		var factory = factories.get(algorithm);
+		if (factory == null) {
+			factory = SecretKeyFactory.getInstance(algorithm);
+			factories.put(algorithm, factory);
+		}
+		return factory;
+	}
+
+	/**
+	 * Derive the key of a password.
+	 *
+	 * @param algorithm  The secret key factory algorithm.
+	 * @param password   The password. Wiped by this method.
+	 * @param salt       The salt.
+	 * @param iterations The iteration count.
+	 * @param keyLength  The key length in bits.
+	 * @return The derived key.
+	 */
+	public static byte[] hash(final String algorithm, final char[] password, final byte[] salt, final int iterations,
+			final int keyLength) {
+		final var spec = new PBEKeySpec(password, salt, iterations, keyLength);
+		Arrays.fill(password, '\0');
+		try {
+			return getFactory(algorithm).generateSecret(spec).getEncoded();
+		} catch (final NoSuchAlgorithmException | InvalidKeySpecException e) {
+			throw new TechnicalException("password-security", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/**
+	 * Derive the Base64 encoded key of a password, as stored in the credentials.
+	 *
+	 * @param algorithm  The secret key factory algorithm.
+	 * @param password   The password. Wiped by this method.
+	 * @param salt       The salt.
+	 * @param iterations The iteration count.
+	 * @param keyLength  The key length in bits.
+	 * @return The Base64 encoded derived key.
+	 */
+	public static String encode(final String algorithm, final char[] password, final byte[] salt,
+			final int iterations, final int keyLength) {
+		final var key = hash(algorithm, password, salt, iterations, keyLength);
+		try {
+			return Base64.getEncoder().encodeToString(key);
+		} finally {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/**
+	 * Check a password against a stored value. The derived key is compared in constant time to the decoded stored
+	 * value, so the comparison duration does not depend on the position of the first difference.
+	 *
+	 * @param algorithm  The secret key factory algorithm.
+	 * @param password   The password. Wiped by this method.
+	 * @param salt       The salt.
+	 * @param iterations The iteration count.
+	 * @param keyLength  The key length in bits.
+	 * @param stored     The stored Base64 encoded derived key.
+	 * @return <code>true</code> when the password matches.
+	 */
+	public static boolean matches(final String algorithm, final char[] password, final byte[] salt,
+			final int iterations, final int keyLength, final String stored) {
+		final var key = hash(algorithm, password, salt, iterations, keyLength);
+		try {
+			return MessageDigest.isEqual(key, Base64.getDecoder().decode(stored));
+		} catch (final IllegalArgumentException e) {
+			// Not a Base64 value
+			return false;
+		} finally {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+}
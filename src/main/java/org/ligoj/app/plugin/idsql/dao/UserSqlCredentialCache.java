@@ -0,0 +1,186 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import lombok.Getter;
+
+/**
+ * Bounded cache of the credentials, by login. The least recently used entries are evicted beyond the limit. The
+ * unknown logins are cached too, so the authentication attempts on them do not hit the database.
+ * <p>
+ * The invalidations are local to this node: the other nodes drop a changed credential when they apply the journaled
+ * change, or when it expires. So a credential changed by another node, or in the database, is served for the time to
+ * live at most.
+ */
+public class UserSqlCredentialCache {
+
+	/**
+	 * A cached credential, detached from the persistence context.
+	 *
+	 * @param salt       The salt. <code>null</code> when the value is not hashed.
+	 * @param value      The hashed value. <code>null</code> when there is no password.
+	 * @param algorithm  The hash algorithm. <code>null</code> for the one of the node.
+	 * @param iterations The hash iteration count. <code>null</code> for the one of the node.
+	 * @param keyLength  The hash key length. <code>null</code> for the one of the node.
+	 * @param locked     The lock date. <code>null</code> when not locked.
+	 * @param lockedBy   The principal having locked the user.
+	 */
+	public record Credential(String salt, String value, String algorithm, Integer iterations, Integer keyLength,
+			Instant locked, String lockedBy) {
+	}
+
+	/**
+	 * Marker of an unknown credential.
+	 */
+	private static final Credential NONE = new Credential(null, null, null, null, null, null, null);
+
+	/**
+	 * A cached credential and its load time.
+	 */
+	private record Entry(Credential credential, long loaded) {
+	}
+
+	/**
+	 * Cached credentials, in the access order.
+	 */
+	private final LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * Maximal amount of cached credentials.
+	 */
+	@Getter
+	private final int maxSize;
+
+	/**
+	 * Time to live of the cached credentials.
+	 */
+	@Getter
+	private final Duration ttl;
+
+	/**
+	 * Time to live of the cached credentials, in nanoseconds.
+	 */
+	private final long ttlNanos;
+
+	/**
+	 * Clock of the load times, in nanoseconds.
+	 */
+	private final LongSupplier clock;
+
+	/**
+	 * Increased by each invalidation, so a credential loaded before an invalidation is not cached.
+	 */
+	private long generation;
+
+	/**
+	 * Build an empty cache.
+	 *
+	 * @param maxSize The maximal amount of cached credentials.
+	 * @param ttl     The time to live of the cached credentials.
+	 */
+	public UserSqlCredentialCache(final int maxSize, final Duration ttl) {
+		this(maxSize, ttl, System::nanoTime);
+	}
+
+	/**
+	 * Build an empty cache with the given clock.
+	 *
+	 * @param maxSize The maximal amount of cached credentials.
+	 * @param ttl     The time to live of the cached credentials.
+	 * @param clock   The clock of the load times, in nanoseconds.
+	 */
+	UserSqlCredentialCache(final int maxSize, final Duration ttl, final LongSupplier clock) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.ttlNanos = ttl.toNanos();
+		this.clock = clock;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Return the credential of a login, loaded on a miss or when expired.
+	 *
+	 * @param login  The login.
+	 * @param loader The loader of a missed credential. May return <code>null</code> when unknown.
+	 * @return The credential, or <code>null</code> when unknown.
+	 */
+	public Credential get(final String login, final Function<String, Credential> loader) {
+		final long loading;
+		final long loaded;
+		synchronized (this) {
+			final var entry = entries.get(login);
+			loaded = clock.getAsLong();
+			if (entry != null) {
+				if (loaded - entry.loaded() < ttlNanos) {
+					return entry.credential() == NONE ? null : entry.credential();
+				}
+				entries.remove(login);
+			}
+			loading = generation;
+		}
+		final var credential = loader.apply(login);
+		synchronized (this) {
+			if (loading == generation) {
+				entries.put(login, new Entry(Optional.ofNullable(credential).orElse(NONE), loaded));
+			}
+		}
+		return credential;
+	}
+
+	/**
+	 * Drop the credential of a changed login. When a transaction is running, the credential is dropped again after its
+	 * completion, so a concurrent reader cannot cache the value replaced by this transaction.
+	 *
+	 * @param login The changed login.
+	 */
+	public void invalidate(final String login) {
+		remove(login);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(final int status) {
+					remove(login);
+				}
+			});
+		}
+	}
+
+	private synchronized void remove(final String login) {
+		generation++;
+		entries.remove(login);
+	}
+
+	/**
+	 * Drop all credentials, after a full reload of the identity data.
+	 */
+	public synchronized void clear() {
+		generation++;
+		entries.clear();
+	}
+
+	/**
+	 * Return the amount of cached credentials.
+	 *
+	 * @return The amount of cached credentials.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -3,13 +3,56 @@
  */
 package org.ligoj.app.plugin.idsql.dao;
 
+import java.util.Collection;
+import java.util.List;
+
 import org.ligoj.app.plugin.idsql.model.UserSqlCredential;
 import org.ligoj.bootstrap.core.dao.RestRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 /**
  * {@link UserSqlCredential} repository
  */
 public interface UserSqlCredentialRepository extends RestRepository<UserSqlCredential, Integer> {
 
-	// All delegated
+	/**
+	 * Return the state of all credentials in a single query. Neither the salt nor the hashed value are returned.
+	 *
+	 * @return The credential states. Each row contains: user identifier, secured flag, locked date, locked by.
+	 */
+	@Query("SELECT c.user.id, CASE WHEN c.value IS NULL THEN FALSE ELSE TRUE END, c.locked, c.lockedBy FROM UserSqlCredential c")
+	List<Object[]> findAllState();
+
+	/**
+	 * Return the state of the credentials of the given users. Neither the salt nor the hashed value are returned.
+	 *
+	 * @param users The user identifiers.
+	 * @return The credential states. Each row contains: user identifier, secured flag, locked date, locked by.
+	 */
+	@Query("SELECT c.user.id, CASE WHEN c.value IS NULL THEN FALSE ELSE TRUE END, c.locked, c.lockedBy FROM UserSqlCredential c WHERE c.user.id IN :users")
+	List<Object[]> findAllState(@Param("users") Collection<String> users);
+
+	/**
+	 * Replace the hash of a credential, only when it is still the verified one. Neither a password change nor a lock
+	 * made since the verification is overwritten.
+	 *
+	 * @param user       The user identifier.
+	 * @param oldSalt    The verified salt.
+	 * @param oldValue   The verified hashed value.
+	 * @param salt       The new salt.
+	 * @param value      The new hashed value.
+	 * @param algorithm  The new hash algorithm.
+	 * @param iterations The new hash iteration count.
+	 * @param keyLength  The new hash key length.
+	 * @return The amount of updated credentials: <code>0</code> when the credential has been changed since its
+	 *         verification.
+	 */
+	@Modifying(flushAutomatically = true, clearAutomatically = true)
+	@Query("UPDATE UserSqlCredential SET salt = :salt, value = :value, algorithm = :algorithm, iterations = :iterations,"
+			+ " keyLength = :keyLength WHERE user.id = :user AND salt = :oldSalt AND value = :oldValue")
+	int updateHash(@Param("user") String user, @Param("oldSalt") String oldSalt, @Param("oldValue") String oldValue,
+			@Param("salt") String salt, @Param("value") String value, @Param("algorithm") String algorithm,
+			@Param("iterations") int iterations, @Param("keyLength") int keyLength);
 }
@@ -0,0 +1,574 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import org.ligoj.app.api.Normalizer;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+
+import static org.ligoj.app.plugin.idsql.dao.FoldUtils.fold;
+
+/**
+ * Sorted views of a user snapshot, one per sortable property. The position of a user in a view is its rank for this
+ * property, so a listing only has to walk a view and filter it, without sorting at request time.
+ * <p>
+ * Views are immutable arrays replaced on each change, so they can be read without locking.
+ * <p>
+ * Each user has a dense ordinal, and the companies, the group memberships and the trigrams of the searchable fields
+ * (login, first name, last name and first mail) are indexed as postings of these ordinals: sorted arrays while sparse,
+ * bitmaps once dense, so the memory stays proportional to the indexed entries. The candidates of a listing are then
+ * resolved by intersecting the sorted postings of the trigrams, or by a bitmap union of the visible companies. The
+ * candidates are finally checked against a precomputed folded key, so the criteria is folded once per request instead
+ * of once per user.
+ */
+public class UserSqlIndex {
+
+	/**
+	 * Length of the indexed n-grams. Shorter criteria cannot use the index.
+	 */
+	public static final int GRAM = 3;
+
+	/**
+	 * Separator of the searchable fields in the search key. A criteria containing it cannot use the search key.
+	 */
+	private static final char SEPARATOR = '\0';
+
+	/**
+	 * Attributes resolved by {@link #findAllBy(String, String)}.
+	 */
+	public static final Set<String> ATTRIBUTES = Set.of("id", "company", "firstName", "lastName", "mails");
+
+	/**
+	 * A sorted view.
+	 *
+	 * @param users    The sorted users.
+	 * @param ordinals The ordinals of the sorted users.
+	 */
+	public record View(UserOrg[] users, int[] ordinals) {
+	}
+
+	/**
+	 * The indexed snapshot.
+	 */
+	private volatile Map<String, UserOrg> users;
+
+	/**
+	 * Total order of each view. Ties are broken by login.
+	 */
+	private final Map<String, Comparator<UserOrg>> comparators = new HashMap<>();
+
+	/**
+	 * Sorted views, by property.
+	 */
+	private final Map<String, View> views = new HashMap<>();
+
+	/**
+	 * User ordinals, by login.
+	 */
+	private final Map<String, Integer> ordinals = new HashMap<>();
+
+	/**
+	 * Users, by ordinal. A deleted user leaves a <code>null</code> slot.
+	 */
+	private volatile UserOrg[] byOrdinal;
+
+	/**
+	 * Folded searchable fields joined by {@link #SEPARATOR}, by ordinal.
+	 */
+	private volatile String[] keys;
+
+	/**
+	 * Indexed company, by ordinal. Needed to update the postings of an entry updated in place.
+	 */
+	private String[] companyOf;
+
+	/**
+	 * Indexed trigrams, by ordinal. Needed to update the postings of an entry updated in place.
+	 */
+	private Set<String>[] gramsOf;
+
+	/**
+	 * Indexed attribute values, by ordinal. Needed to update the postings of an entry updated in place.
+	 */
+	private Set<String>[] valuesOf;
+
+	/**
+	 * Next ordinal.
+	 */
+	private int size;
+
+	/**
+	 * User ordinals, by company.
+	 */
+	private final Map<String, UserSqlPosting> companies = new HashMap<>();
+
+	/**
+	 * Member ordinals, by group. Computed on demand and dropped by the membership changes.
+	 */
+	private final Map<String, UserSqlPosting> groups = new HashMap<>();
+
+	/**
+	 * User ordinals, by folded trigram of their searchable fields.
+	 */
+	private final Map<String, UserSqlPosting> grams = new HashMap<>();
+
+	/**
+	 * Sorted user ordinals, by attribute name and exact value joined by {@link #SEPARATOR}. Most values are held by a
+	 * few users, such as the mails, so they are plain arrays replaced on each change.
+	 */
+	private final Map<String, int[]> values = new HashMap<>();
+
+	/**
+	 * Build the sorted views and the postings of the given users.
+	 *
+	 * @param users       The indexed snapshot. Key is the user login.
+	 * @param comparators The ascending comparators, by property.
+	 */
+	@SuppressWarnings("unchecked")
+	public UserSqlIndex(final Map<String, UserOrg> users, final Map<String, Comparator<UserOrg>> comparators) {
+		this.users = users;
+		final var all = users.values().toArray(new UserOrg[0]);
+		byOrdinal = new UserOrg[all.length];
+		keys = new String[all.length];
+		companyOf = new String[all.length];
+		gramsOf = new Set[all.length];
+		valuesOf = new Set[all.length];
+		for (final var user : all) {
+			index(allocate(user), user);
+		}
+		comparators.forEach((property, comparator) -> {
+			final var total = comparator.thenComparing(UserSqlRepository.DEFAULT_COMPARATOR);
+			final var sorted = all.clone();
+			Arrays.sort(sorted, total);
+			this.comparators.put(property, total);
+			views.put(property,
+					new View(sorted, Arrays.stream(sorted).mapToInt(u -> ordinals.get(u.getId())).toArray()));
+		});
+	}
+
+	/**
+	 * Return the folded searchable fields of the given user, so a case-insensitive match on any of them becomes a
+	 * plain substring search on this key.
+	 */
+	private static String toKey(final UserOrg user) {
+		final var key = new StringBuilder();
+		key.append(fold(user.getId())).append(SEPARATOR);
+		Optional.ofNullable(fold(user.getFirstName())).ifPresent(key::append);
+		key.append(SEPARATOR);
+		Optional.ofNullable(fold(user.getLastName())).ifPresent(key::append);
+		key.append(SEPARATOR);
+		if (user.getMails() != null && !user.getMails().isEmpty()) {
+			Optional.ofNullable(fold(user.getMails().getFirst())).ifPresent(key::append);
+		}
+		return key.toString();
+	}
+
+	private static void addGrams(final Set<String> result, final String value) {
+		final var folded = fold(value);
+		if (folded != null) {
+			for (var i = 0; i + GRAM <= folded.length(); i++) {
+				result.add(folded.substring(i, i + GRAM));
+			}
+		}
+	}
+
+	private static Set<String> getGrams(final UserOrg user) {
+		final var result = new HashSet<String>();
+		addGrams(result, user.getId());
+		addGrams(result, user.getFirstName());
+		addGrams(result, user.getLastName());
+		if (user.getMails() != null && !user.getMails().isEmpty()) {
+			addGrams(result, user.getMails().getFirst());
+		}
+		return result;
+	}
+
+	private static Set<String> getValues(final UserOrg user) {
+		final var result = new HashSet<String>();
+		Optional.ofNullable(user.getFirstName()).ifPresent(v -> result.add(toValueKey("firstName", v)));
+		Optional.ofNullable(user.getLastName()).ifPresent(v -> result.add(toValueKey("lastName", v)));
+		if (user.getMails() != null) {
+			user.getMails().stream().filter(Objects::nonNull).forEach(m -> result.add(toValueKey("mails", m)));
+		}
+		return result;
+	}
+
+	/**
+	 * Return the key of an attribute value in the value postings. The value is folded, so the lookups ignore the case
+	 * as the database collation does.
+	 */
+	private static String toValueKey(final String attribute, final String value) {
+		return attribute + SEPARATOR + fold(value);
+	}
+
+	/**
+	 * Assign a new ordinal to the given user.
+	 */
+	private int allocate(final UserOrg user) {
+		final var ordinal = size++;
+		if (ordinal == byOrdinal.length) {
+			final var length = Math.max(16, ordinal * 2);
+			byOrdinal = Arrays.copyOf(byOrdinal, length);
+			keys = Arrays.copyOf(keys, length);
+			companyOf = Arrays.copyOf(companyOf, length);
+			gramsOf = Arrays.copyOf(gramsOf, length);
+			valuesOf = Arrays.copyOf(valuesOf, length);
+		}
+		byOrdinal[ordinal] = user;
+		ordinals.put(user.getId(), ordinal);
+		return ordinal;
+	}
+
+	/**
+	 * Index the searchable fields and the company of the given user.
+	 */
+	private void index(final int ordinal, final UserOrg user) {
+		keys[ordinal] = toKey(user);
+		companyOf[ordinal] = user.getCompany();
+		add(companies, user.getCompany(), ordinal);
+		gramsOf[ordinal] = getGrams(user);
+		gramsOf[ordinal].forEach(g -> add(grams, g, ordinal));
+		valuesOf[ordinal] = getValues(user);
+		valuesOf[ordinal].forEach(v -> values.merge(v, new int[]{ordinal}, UserSqlIndex::merge));
+	}
+
+	private void add(final Map<String, UserSqlPosting> postings, final String key, final int ordinal) {
+		postings.computeIfAbsent(key, k -> new UserSqlPosting()).add(ordinal, byOrdinal.length);
+	}
+
+	/**
+	 * Remove the searchable fields and the company of the given ordinal from the postings.
+	 */
+	private void unindex(final int ordinal) {
+		keys[ordinal] = null;
+		clear(companies, companyOf[ordinal], ordinal);
+		companyOf[ordinal] = null;
+		gramsOf[ordinal].forEach(g -> clear(grams, g, ordinal));
+		gramsOf[ordinal] = null;
+		valuesOf[ordinal].forEach(v -> values.computeIfPresent(v, (k, o) -> remove(o, ordinal)));
+		valuesOf[ordinal] = null;
+	}
+
+	/**
+	 * Return the sorted ordinals of a value with an added one.
+	 */
+	private static int[] merge(final int[] sorted, final int[] added) {
+		final var position = Arrays.binarySearch(sorted, added[0]);
+		if (position >= 0) {
+			return sorted;
+		}
+		final var insert = -position - 1;
+		final var result = new int[sorted.length + 1];
+		System.arraycopy(sorted, 0, result, 0, insert);
+		result[insert] = added[0];
+		System.arraycopy(sorted, insert, result, insert + 1, sorted.length - insert);
+		return result;
+	}
+
+	/**
+	 * Return the sorted ordinals of a value without a removed one, or <code>null</code> when there is no more user.
+	 */
+	private static int[] remove(final int[] sorted, final int ordinal) {
+		final var position = Arrays.binarySearch(sorted, ordinal);
+		if (position < 0) {
+			return sorted;
+		}
+		if (sorted.length == 1) {
+			return null;
+		}
+		final var result = new int[sorted.length - 1];
+		System.arraycopy(sorted, 0, result, 0, position);
+		System.arraycopy(sorted, position + 1, result, position, sorted.length - position - 1);
+		return result;
+	}
+
+	private void clear(final Map<String, UserSqlPosting> postings, final String key, final int ordinal) {
+		final var posting = postings.get(key);
+		posting.remove(ordinal, byOrdinal.length);
+		if (posting.isEmpty()) {
+			postings.remove(key);
+		}
+	}
+
+	/**
+	 * Return a matcher of the user ordinals having the given criteria in their login, first name, last name or first
+	 * mail, ignoring the case. The criteria is folded once, then searched in the folded keys.
+	 *
+	 * @param criteria The search criteria. May be <code>null</code> to accept all users.
+	 * @return The matcher of the user ordinals. Same result as
+	 *         {@link UserSqlRepository#matchPattern(UserOrg, String)}.
+	 */
+	public IntPredicate newMatcher(final String criteria) {
+		if (criteria == null) {
+			return o -> true;
+		}
+		final var folded = fold(criteria);
+		if (folded.indexOf(SEPARATOR) >= 0) {
+			// The criteria would match across several fields
+			return o -> Optional.ofNullable(getUser(o)).map(u -> UserSqlRepository.matchPattern(u, criteria))
+					.orElse(false);
+		}
+		final var current = keys;
+		return o -> o < current.length && current[o] != null && current[o].contains(folded);
+	}
+
+	/**
+	 * Return the ordinals of the users within the visible companies, member of one of the required groups, and having
+	 * all the trigrams of the given criteria in their searchable fields. The result is a superset of the users
+	 * matching the criteria, to be checked by the caller: the trigrams may be found in different fields.
+	 * <p>
+	 * With a criteria, the postings of its trigrams are intersected from the smallest one, and only the remaining
+	 * candidates are checked against the visible companies. Otherwise, the postings of the visible companies are
+	 * merged.
+	 *
+	 * @param requiredGroups The groups the users must be member of. May be <code>null</code> when there is no
+	 *                       constraint on group.
+	 * @param visible        The matcher of the visible companies.
+	 * @param criteria       The search criteria. May be <code>null</code>.
+	 * @return The candidate ordinals.
+	 */
+	public synchronized BitSet newCandidates(final Collection<GroupOrg> requiredGroups, final Predicate<String> visible,
+			final String criteria) {
+		final var result = new BitSet(size);
+		final var criteriaGrams = new HashSet<String>();
+		if (criteria != null && criteria.length() >= GRAM) {
+			addGrams(criteriaGrams, criteria);
+		}
+		if (criteriaGrams.isEmpty()) {
+			companies.forEach((company, posting) -> {
+				if (visible.test(company)) {
+					posting.or(result);
+				}
+			});
+		} else {
+			final var postings = new ArrayList<UserSqlPosting>();
+			for (final var gram : criteriaGrams) {
+				final var posting = grams.get(gram);
+				if (posting == null) {
+					// No user has this trigram
+					return result;
+				}
+				postings.add(posting);
+			}
+			postings.sort(Comparator.comparingInt(UserSqlPosting::size));
+			var candidates = postings.getFirst().toArray();
+			for (var i = 1; i < postings.size() && candidates.length > 0; i++) {
+				candidates = postings.get(i).retain(candidates);
+			}
+			for (final var ordinal : candidates) {
+				if (visible.test(companyOf[ordinal])) {
+					result.set(ordinal);
+				}
+			}
+		}
+		if (requiredGroups != null) {
+			// A user may be member of several required groups, but is selected only once
+			final var members = new BitSet(size);
+			requiredGroups.forEach(g -> getMembers(g).or(members));
+			result.and(members);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the users having the given value for an attribute, ignoring the case as the database collation does. A
+	 * user having several mails is found by any of them. The logins and the company identifiers are normalized, so they
+	 * are looked up as is, then normalized.
+	 *
+	 * @param attribute The attribute name, one of {@link #ATTRIBUTES}.
+	 * @param value     The value.
+	 * @return The matching users, in ordinal order. They are the indexed instances, and must not be modified.
+	 */
+	public synchronized List<UserOrg> findAllBy(final String attribute, final String value) {
+		if (value == null) {
+			return List.of();
+		}
+		final IntStream found;
+		if ("id".equals(attribute)) {
+			found = Optional.ofNullable(ordinals.get(value))
+					.or(() -> Optional.ofNullable(ordinals.get(Normalizer.normalize(value)))).stream()
+					.mapToInt(Integer::intValue);
+		} else if ("company".equals(attribute)) {
+			found = Optional.ofNullable(companies.get(value))
+					.or(() -> Optional.ofNullable(companies.get(Normalizer.normalize(value))))
+					.map(UserSqlPosting::stream).orElseGet(IntStream::empty);
+		} else {
+			found = Optional.ofNullable(values.get(toValueKey(attribute, value))).map(Arrays::stream)
+					.orElseGet(IntStream::empty);
+		}
+		return found.mapToObj(o -> byOrdinal[o]).toList();
+	}
+
+	/**
+	 * Return the member ordinals of the given group.
+	 */
+	private UserSqlPosting getMembers(final GroupOrg group) {
+		return groups.computeIfAbsent(group.getId(),
+				k -> new UserSqlPosting(group.getMembers().stream().map(ordinals::get).filter(Objects::nonNull)
+						.mapToInt(Integer::intValue).sorted().distinct().toArray(), byOrdinal.length));
+	}
+
+	/**
+	 * Drop the members posting of the given group, after a membership change.
+	 *
+	 * @param id The changed group identifier.
+	 */
+	public synchronized void invalidateGroup(final String id) {
+		groups.remove(id);
+	}
+
+	/**
+	 * Return the user of the given ordinal.
+	 *
+	 * @param ordinal The user ordinal.
+	 * @return The user, or <code>null</code> when deleted.
+	 */
+	public UserOrg getUser(final int ordinal) {
+		final var current = byOrdinal;
+		return ordinal < current.length ? current[ordinal] : null;
+	}
+
+	/**
+	 * Return the ordinal of the given user.
+	 *
+	 * @param id The user login.
+	 * @return The user ordinal, or <code>null</code> when not indexed.
+	 */
+	public synchronized Integer getOrdinal(final String id) {
+		return ordinals.get(id);
+	}
+
+	/**
+	 * Indicates this index has been built from the given snapshot.
+	 *
+	 * @param users The current snapshot.
+	 * @return <code>true</code> when this index is built from the given snapshot.
+	 */
+	public boolean isIndexing(final Map<String, UserOrg> users) {
+		return this.users == users;
+	}
+
+	/**
+	 * Bind this index to a new snapshot sharing most of its users with the indexed one. The changed users must then be
+	 * refreshed.
+	 *
+	 * @param users The new snapshot.
+	 */
+	public synchronized void rebind(final Map<String, UserOrg> users) {
+		this.users = users;
+	}
+
+	/**
+	 * Return the users sorted in ascending order of the given property.
+	 *
+	 * @param property The sortable property.
+	 * @return The sorted view, or <code>null</code> when the property is not indexed. Must not be modified.
+	 */
+	public View getView(final String property) {
+		synchronized (views) {
+			return views.get(property);
+		}
+	}
+
+	/**
+	 * Move the given user to its new rank in each view and reindex it, or remove it when it no longer exists in the
+	 * snapshot.
+	 *
+	 * @param id The created, updated or deleted user login.
+	 */
+	public void refresh(final String id) {
+		refresh(List.of(id));
+	}
+
+	/**
+	 * Move the given users to their new rank in each view and reindex them, or remove the ones no longer existing in
+	 * the snapshot. Each view is rebuilt once for all the changed users.
+	 *
+	 * @param ids The created, updated or deleted user logins.
+	 */
+	public void refresh(final Collection<String> ids) {
+		final var changed = new HashSet<>(ids);
+		final var current = users;
+		final var added = new ArrayList<UserOrg>();
+		final var addedOrdinals = new ArrayList<Integer>();
+		synchronized (this) {
+			for (final var id : changed) {
+				final var user = current.get(id);
+				final var previous = ordinals.get(id);
+				if (previous != null) {
+					unindex(previous);
+				}
+				if (user == null) {
+					if (previous != null) {
+						byOrdinal[previous] = null;
+						ordinals.remove(id);
+						groups.values().forEach(g -> g.remove(previous, byOrdinal.length));
+					}
+				} else {
+					final var ordinal = previous == null ? allocate(user) : previous;
+					byOrdinal[ordinal] = user;
+					index(ordinal, user);
+					added.add(user);
+					addedOrdinals.add(ordinal);
+				}
+			}
+		}
+		synchronized (views) {
+			views.replaceAll((property, view) -> refresh(view, changed, added, addedOrdinals,
+					comparators.get(property)));
+		}
+	}
+
+	/**
+	 * Return a view without the changed users, merged with the sorted added ones.
+	 */
+	private static View refresh(final View view, final Set<String> changed, final List<UserOrg> added,
+			final List<Integer> addedOrdinals, final Comparator<UserOrg> comparator) {
+		// The attributes of the indexed entries may have already been changed, so they cannot be searched by rank
+		final var sorted = view.users();
+		final var sortedOrdinals = view.ordinals();
+		final var kept = new UserOrg[sorted.length];
+		final var keptOrdinals = new int[sorted.length];
+		var size = 0;
+		for (var i = 0; i < sorted.length; i++) {
+			if (!changed.contains(sorted[i].getId())) {
+				kept[size] = sorted[i];
+				keptOrdinals[size++] = sortedOrdinals[i];
+			}
+		}
+
+		// Merge the kept users with the sorted added ones
+		final var order = new Integer[added.size()];
+		Arrays.setAll(order, i -> i);
+		Arrays.sort(order, (a, b) -> comparator.compare(added.get(a), added.get(b)));
+		final var result = new UserOrg[size + order.length];
+		final var resultOrdinals = new int[result.length];
+		for (int i = 0, j = 0, k = 0; k < result.length; k++) {
+			if (j == order.length || i < size && comparator.compare(kept[i], added.get(order[j])) <= 0) {
+				result[k] = kept[i];
+				resultOrdinals[k] = keptOrdinals[i++];
+			} else {
+				result[k] = added.get(order[j]);
+				resultOrdinals[k] = addedOrdinals.get(order[j++]);
+			}
+		}
+		return new View(result, resultOrdinals);
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * Set of user ordinals of an index entry. A sparse posting is a sorted array of ordinals, costing four bytes per
+ * ordinal. A dense posting, such as a company or a large group, is a bitmap costing one bit per indexed user. So a
+ * posting holding a single user near the end of the ordinals does not cost a bitmap of all the users.
+ * <p>
+ * Not thread safe, guarded by the owning index.
+ */
+final class UserSqlPosting {
+
+	/**
+	 * A posting holding more than one ordinal out of this ratio of the indexed users is a bitmap. At this ratio, both
+	 * forms cost the same memory.
+	 */
+	private static final int DENSITY = 32;
+
+	/**
+	 * Minimal amount of ordinals of a bitmap.
+	 */
+	private static final int MIN_DENSE = 64;
+
+	/**
+	 * Sorted ordinals of a sparse posting, followed by unused slots. <code>null</code> when dense.
+	 */
+	private int[] ordinals;
+
+	/**
+	 * Ordinals of a dense posting. <code>null</code> when sparse.
+	 */
+	private BitSet bitmap;
+
+	/**
+	 * Amount of ordinals.
+	 */
+	private int size;
+
+	/**
+	 * Build an empty sparse posting.
+	 */
+	UserSqlPosting() {
+		ordinals = new int[1];
+	}
+
+	/**
+	 * Build a posting holding the given ordinals.
+	 *
+	 * @param sorted   The sorted and distinct ordinals. Owned by this posting.
+	 * @param universe The amount of indexed users.
+	 */
+	UserSqlPosting(final int[] sorted, final int universe) {
+		ordinals = sorted;
+		size = sorted.length;
+		if (isDense(universe)) {
+			toBitmap();
+		}
+	}
+
+	private boolean isDense(final int universe) {
+		return size >= MIN_DENSE && (long) size * DENSITY > universe;
+	}
+
+	private void toBitmap() {
+		bitmap = new BitSet();
+		for (var i = 0; i < size; i++) {
+			bitmap.set(ordinals[i]);
+		}
+		ordinals = null;
+	}
+
+	/**
+	 * Add an ordinal. The posting becomes a bitmap when it is dense enough.
+	 *
+	 * @param ordinal  The ordinal to add.
+	 * @param universe The amount of indexed users.
+	 */
+	void add(final int ordinal, final int universe) {
+		if (bitmap != null) {
+			if (!bitmap.get(ordinal)) {
+				bitmap.set(ordinal);
+				size++;
+			}
+			return;
+		}
+		final var position = Arrays.binarySearch(ordinals, 0, size, ordinal);
+		if (position >= 0) {
+			return;
+		}
+		final var insert = -position - 1;
+		if (size == ordinals.length) {
+			ordinals = Arrays.copyOf(ordinals, Math.max(1, size * 2));
+		}
+		System.arraycopy(ordinals, insert, ordinals, insert + 1, size - insert);
+		ordinals[insert] = ordinal;
+		size++;
+		if (isDense(universe)) {
+			toBitmap();
+		}
+	}
+
+	/**
+	 * Remove an ordinal. The posting becomes a sorted array again when it is far below the density of a bitmap.
+	 *
+	 * @param ordinal  The ordinal to remove.
+	 * @param universe The amount of indexed users.
+	 */
+	void remove(final int ordinal, final int universe) {
+		if (bitmap != null) {
+			if (bitmap.get(ordinal)) {
+				bitmap.clear(ordinal);
+				size--;
+				if ((long) size * DENSITY * 2 < universe) {
+					ordinals = bitmap.stream().toArray();
+					bitmap = null;
+				}
+			}
+			return;
+		}
+		final var position = Arrays.binarySearch(ordinals, 0, size, ordinal);
+		if (position >= 0) {
+			System.arraycopy(ordinals, position + 1, ordinals, position, size - position - 1);
+			size--;
+			if (size * 4 < ordinals.length) {
+				ordinals = Arrays.copyOf(ordinals, Math.max(1, size * 2));
+			}
+		}
+	}
+
+	/**
+	 * Return the amount of ordinals.
+	 *
+	 * @return The amount of ordinals.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Indicates this posting has no ordinal.
+	 *
+	 * @return <code>true</code> when this posting has no ordinal.
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Indicates this posting holds the given ordinal.
+	 *
+	 * @param ordinal The ordinal to check.
+	 * @return <code>true</code> when this posting holds the given ordinal.
+	 */
+	boolean contains(final int ordinal) {
+		return bitmap == null ? Arrays.binarySearch(ordinals, 0, size, ordinal) >= 0 : bitmap.get(ordinal);
+	}
+
+	/**
+	 * Add the ordinals of this posting to the given bitmap.
+	 *
+	 * @param target The updated bitmap.
+	 */
+	void or(final BitSet target) {
+		if (bitmap == null) {
+			for (var i = 0; i < size; i++) {
+				target.set(ordinals[i]);
+			}
+		} else {
+			target.or(bitmap);
+		}
+	}
+
+	/**
+	 * Return the given ordinals held by this posting. Two sorted arrays are intersected by a single merge.
+	 *
+	 * @param sorted The sorted ordinals to filter.
+	 * @return The sorted ordinals held by both.
+	 */
+	int[] retain(final int[] sorted) {
+		final var result = new int[Math.min(sorted.length, size)];
+		var count = 0;
+		if (bitmap == null) {
+			for (int i = 0, j = 0; i < sorted.length && j < size;) {
+				if (sorted[i] < ordinals[j]) {
+					i++;
+				} else if (sorted[i] > ordinals[j]) {
+					j++;
+				} else {
+					result[count++] = sorted[i++];
+					j++;
+				}
+			}
+		} else {
+			for (final var ordinal : sorted) {
+				if (bitmap.get(ordinal)) {
+					result[count++] = ordinal;
+				}
+			}
+		}
+		return count == result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Return the ordinals of this posting.
+	 *
+	 * @return The sorted ordinals.
+	 */
+	int[] toArray() {
+		return bitmap == null ? Arrays.copyOf(ordinals, size) : bitmap.stream().toArray();
+	}
+
+	/**
+	 * Return the ordinals of this posting.
+	 *
+	 * @return The ordinals in ascending order.
+	 */
+	IntStream stream() {
+		return bitmap == null ? Arrays.stream(ordinals, 0, size) : bitmap.stream();
+	}
+
+	/**
+	 * Indicates this posting is held as a bitmap.
+	 *
+	 * @return <code>true</code> when this posting is held as a bitmap.
+	 */
+	boolean isDense() {
+		return bitmap != null;
+	}
+}
@@ -19,24 +19,28 @@ import org.ligoj.app.plugin.id.dao.AbstractMemCacheRepository.CacheDataType;
 import org.ligoj.app.plugin.id.model.*;
 import org.ligoj.app.plugin.idsql.model.UserSqlCredential;
 import org.ligoj.app.plugin.idsql.resource.SqlPluginResource;
-import org.ligoj.bootstrap.core.json.InMemoryPagination;
-import org.ligoj.bootstrap.core.resource.TechnicalException;
 import org.ligoj.bootstrap.core.validation.ValidationJsonException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.domain.Sort.Direction;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 import javax.naming.Name;
 import javax.naming.ldap.LdapName;
 import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
 
 /**
  * User SQL repository
@@ -46,7 +50,10 @@ public class UserSqlRepository implements IUserRepository {
 
 	private static final String USER_ID = "user.id";
 
-	private static final Map<String, Comparator<UserOrg>> COMPARATORS = new HashMap<>();
+	/**
+	 * Ascending comparators, by sortable property.
+	 */
+	static final Map<String, Comparator<UserOrg>> COMPARATORS = new HashMap<>();
 
 	/**
 	 * User comparator for ordering
@@ -54,6 +61,18 @@ public class UserSqlRepository implements IUserRepository {
 	public static final Comparator<UserOrg> DEFAULT_COMPARATOR = new LoginComparator();
 	private static final Sort.Order DEFAULT_ORDER = new Sort.Order(Direction.ASC, "id");
 
+	/**
+	 * Maximal <code>offset+size</code> of a requested page to select the users with a bounded heap instead of sorting
+	 * the whole result.
+	 */
+	private static final int MAX_TOP_K = 1000;
+
+	/**
+	 * Minimal ratio between the whole users and the candidates narrowed by the required groups and the criteria to
+	 * prefer the bounded heap selection to the ranked walk.
+	 */
+	private static final int TOP_K_SELECTIVITY = 8;
+
 	/**
 	 * Shared random string generator used for temporary passwords.
 	 */
@@ -74,6 +93,27 @@ public class UserSqlRepository implements IUserRepository {
 	@Setter
 	private int saltLength = 64;
 
+	/**
+	 * Hash algorithm of the credentials stored without their hash parameters, before they were stored with them. The
+	 * legacy parameters are the former defaults of the node, so changing the parameters of the node does not reject
+	 * these credentials.
+	 */
+	static final String LEGACY_ALG = SqlPluginResource.DEFAULT_ALG;
+
+	/**
+	 * Hash iteration count of the credentials stored without their hash parameters.
+	 *
+	 * @see #LEGACY_ALG
+	 */
+	static final int LEGACY_ITERATIONS = 10;
+
+	/**
+	 * Hash key length of the credentials stored without their hash parameters.
+	 *
+	 * @see #LEGACY_ALG
+	 */
+	static final int LEGACY_KEY_LENGTH = 256;
+
 	/**
 	 * Hash iteration count.
 	 *
@@ -98,8 +138,13 @@ public class UserSqlRepository implements IUserRepository {
 	@Setter
 	private String secretKeyFactory = SqlPluginResource.DEFAULT_ALG;
 
-	@Autowired
-	private InMemoryPagination inMemoryPagination;
+	/**
+	 * When <code>true</code>, the user listings are filtered, sorted and paged by the database instead of the in
+	 * memory index.
+	 */
+	@Getter
+	@Setter
+	private boolean pushDown;
 
 	@Getter
 	@Setter
@@ -117,9 +162,32 @@ public class UserSqlRepository implements IUserRepository {
 	@Autowired
 	private CacheUserRepository cacheUserRepository;
 
+	@Autowired
+	private CacheSqlDao cacheSqlDao;
+
 	@Autowired
 	private CacheSqlRepository cacheRepository;
 
+	@Autowired
+	@Setter
+	private AuthenticationExecutor authenticationExecutor;
+
+	@Autowired
+	private AuthenticationThrottle authenticationThrottle;
+
+	/**
+	 * Users read by another thread, returned by the next {@link #findAllNoCache(Map)}. <code>null</code> when there is
+	 * no pending read.
+	 */
+	private final AtomicReference<CompletableFuture<Map<String, UserOrg>>> prefetched = new AtomicReference<>();
+
+	/**
+	 * Transaction manager used by the background rehashes.
+	 */
+	@Autowired(required = false)
+	@Setter
+	private PlatformTransactionManager transactionManager;
+
 	static {
 		COMPARATORS.put("company", new CompanyComparator());
 		COMPARATORS.put("id", new LoginComparator());
@@ -140,8 +208,21 @@ public class UserSqlRepository implements IUserRepository {
 		return Optional.ofNullable(cacheUserRepository.findOne(login)).map(this::toUser).orElse(null);
 	}
 
+	/**
+	 * Return the users having the given value for an attribute, ignoring the case. The common attributes are resolved
+	 * by the hash indexes of the cached snapshot, the other ones by the database. With the push-down mode, all the
+	 * attributes are resolved by the database, so the user index is not built.
+	 *
+	 * @param attribute The attribute name.
+	 * @param value     The value.
+	 * @return The matching users. They are copies, so they can be modified without altering the cached data.
+	 */
 	@Override
 	public List<UserOrg> findAllBy(final String attribute, final String value) {
+		if (!pushDown && UserSqlIndex.ATTRIBUTES.contains(attribute)) {
+			return cacheRepository.getUserIndex().findAllBy(attribute, value).stream().map(CacheSqlRepository::copy)
+					.toList();
+		}
 		return cacheUserRepository.findAllBy(attribute, value).stream().map(this::toUser).toList();
 	}
 
@@ -159,21 +240,62 @@ public class UserSqlRepository implements IUserRepository {
 	 */
 	@Override
 	public Map<String, UserOrg> findAllNoCache(final Map<String, GroupOrg> groups) {
+		final var result = Optional.ofNullable(prefetched.getAndSet(null)).map(FutureUtils::join)
+				.orElseGet(this::findAllNoCacheNoGroups);
+		attachGroups(result, groups);
+		return result;
+	}
+
+	/**
+	 * Start reading all users without their memberships with the given executor. The result is completed and returned
+	 * by the next {@link #findAllNoCache(Map)} call, so this read runs concurrently with the other reads of a full
+	 * reload.
+	 *
+	 * @param executor The executor of the read. When <code>null</code>, the pending read is dropped.
+	 */
+	public void prefetch(final Executor executor) {
+		prefetched.set(executor == null ? null : CompletableFuture.supplyAsync(this::findAllNoCacheNoGroups, executor));
+	}
+
+	/**
+	 * Return all user entries without their memberships. Does not depend on the groups, so can be executed
+	 * concurrently with the group load.
+	 *
+	 * @return all user entries. Key is the user login.
+	 * @see #attachGroups(Map, Map)
+	 */
+	public Map<String, UserOrg> findAllNoCacheNoGroups() {
 
-		// Fetch users and their direct attributes
-		final var users = cacheUserRepository.findAll().stream().map(this::toUser).toList();
+		// Fetch the credential states in a single query
+		final Map<String, Object[]> credentials = new HashMap<>();
+		credentialRepository.findAllState().forEach(s -> credentials.put((String) s[0], s));
 
-		// Index the users by the identifier and update the memberships of this user
+		// Stream the users and their direct attributes, and join the credential states in memory
 		final Map<String, UserOrg> result = new HashMap<>();
-		for (final var user : users) {
-			user.setGroups(new ArrayList<>());
+		cacheSqlDao.readUsers(r -> {
+			final UserOrg user = toUser(r, credentials.get((String) r[0]));
 			result.put(user.getId(), user);
-			groups.values().stream().filter(g -> g.getMembers().contains(user.getId()))
-					.forEach(g -> user.getGroups().add(g.getId()));
-		}
+		});
 		return result;
 	}
 
+	/**
+	 * Replace the memberships of the given users from the members of the given groups.
+	 *
+	 * @param users  The users to update.
+	 * @param groups The existing groups.
+	 */
+	public void attachGroups(final Map<String, UserOrg> users, final Map<String, GroupOrg> groups) {
+		// Build the user to groups index in a single pass over the group members
+		final Map<String, List<String>> memberships = new HashMap<>();
+		for (final var group : groups.values()) {
+			group.getMembers().forEach(m -> memberships.computeIfAbsent(m, k -> new ArrayList<>()).add(group.getId()));
+		}
+
+		// Attach the memberships of each user
+		users.values().forEach(u -> u.setGroups(memberships.computeIfAbsent(u.getId(), k -> new ArrayList<>())));
+	}
+
 	@Override
 	public String toDn(UserOrg newUser) {
 		return buildDn(newUser).toString();
@@ -202,22 +324,87 @@ public class UserSqlRepository implements IUserRepository {
 	}
 
 	private UserOrg toUser(final CacheUser entity) {
-		final UserOrg user = new UserOrg();
-		user.setDn(buildDn(entity.getId(), entity.getCompany().getDescription()));
-		user.setLastName(entity.getLastName());
-		user.setFirstName(entity.getFirstName());
-		user.setId(entity.getId());
-		user.setCompany(entity.getCompany().getId());
+		final UserOrg user = toUserNoCredential(entity);
 
 		// Copy the credential data
-		final UserSqlCredential credential = credentialRepository.findBy(USER_ID, entity.getId());
-		user.setSecured(Optional.ofNullable(credential).map(UserSqlCredential::getValue).orElse(null) != null);
-		user.setMails(Arrays.asList(StringUtils.split(StringUtils.defaultIfBlank(entity.getMails(), ""), ",;")));
-		user.setLocked(Optional.ofNullable(credential).map(UserSqlCredential::getLocked).orElse(null));
-		user.setLockedBy(Optional.ofNullable(credential).map(UserSqlCredential::getLockedBy).orElse(null));
+		final var credential = findCredential(entity.getId());
+		if (credential != null) {
+			setCredential(user, credential.value() != null, credential.locked(), credential.lockedBy());
+		}
+		return user;
+	}
+
+	/**
+	 * Return the credential of a login from the credential cache, or from the database on a miss. The cache follows the
+	 * lifecycle of the identity data: it is cleared when they are fully reloaded.
+	 *
+	 * @param login The login.
+	 * @return The credential, or <code>null</code> when there is no credential.
+	 */
+	private UserSqlCredentialCache.Credential findCredential(final String login) {
+		final Function<String, UserSqlCredentialCache.Credential> loader = l -> Optional
+				.ofNullable(credentialRepository.findBy(USER_ID, l))
+				.map(c -> new UserSqlCredentialCache.Credential(c.getSalt(), c.getValue(), c.getAlgorithm(),
+						c.getIterations(), c.getKeyLength(), c.getLocked(), c.getLockedBy()))
+				.orElse(null);
+		final var cache = cacheRepository.getCredentialCache();
+		if (cache == null) {
+			return loader.apply(login);
+		}
+
+		// Expired identity data are reloaded, and the cached credentials with them
+		cacheRepository.getData();
+		return cache.get(login, loader);
+	}
+
+	/**
+	 * Drop the cached credential of a login, after a credential change.
+	 */
+	private void invalidateCredential(final String login) {
+		Optional.ofNullable(cacheRepository.getCredentialCache()).ifPresent(c -> c.invalidate(login));
+	}
+
+	/**
+	 * Build a user from a row read by {@link CacheSqlDao#readUsers(java.util.function.Consumer)} and the credential
+	 * state fetched by {@link UserSqlCredentialRepository#findAllState()}.
+	 *
+	 * @param row   The user row.
+	 * @param state The credential state. May be <code>null</code>.
+	 * @return The user with its credential state.
+	 */
+	private UserOrg toUser(final Object[] row, final Object[] state) {
+		final UserOrg user = newUser((String) row[0], (String) row[1], (String) row[2], (String) row[3],
+				(String) row[4], (String) row[5]);
+		if (state != null) {
+			setCredential(user, (Boolean) state[1], (Instant) state[2], (String) state[3]);
+		}
+		return user;
+	}
+
+	private UserOrg toUserNoCredential(final CacheUser entity) {
+		return newUser(entity.getId(), entity.getFirstName(), entity.getLastName(), entity.getMails(),
+				entity.getCompany().getId(), entity.getCompany().getDescription());
+	}
+
+	private UserOrg newUser(final String id, final String firstName, final String lastName, final String mails,
+			final String company, final String companyDn) {
+		final UserOrg user = new UserOrg();
+		user.setDn(buildDn(id, companyDn));
+		user.setLastName(lastName);
+		user.setFirstName(firstName);
+		user.setId(id);
+		user.setCompany(company);
+		user.setMails(Arrays.asList(StringUtils.split(StringUtils.defaultIfBlank(mails, ""), ",;")));
 		return user;
 	}
 
+	private void setCredential(final UserOrg user, final boolean secured, final Instant locked,
+			final String lockedBy) {
+		user.setSecured(secured);
+		user.setLocked(locked);
+		user.setLockedBy(lockedBy);
+	}
+
 	@Override
 	public Page<UserOrg> findAll(final Collection<GroupOrg> requiredGroups, final Set<String> companies,
 			final String criteria, final Pageable pageable) {
@@ -226,64 +413,324 @@ public class UserSqlRepository implements IUserRepository {
 				.toList(ObjectUtils.getIfNull(pageable.getSort(), new ArrayList<Sort.Order>()).iterator());
 		orders.add(DEFAULT_ORDER);
 		final Sort.Order order = orders.getFirst();
-		Comparator<UserOrg> comparator = ObjectUtils.getIfNull(COMPARATORS.get(order.getProperty()),
-				DEFAULT_COMPARATOR);
-		if (order.getDirection() == Direction.DESC) {
-			comparator = Collections.reverseOrder(comparator);
-		}
-		final Set<UserOrg> result = new TreeSet<>(comparator);
-
-		// Filter the users traversing firstly the required groups and their members,
-		// the companies, then the criteria
-		final Map<String, UserOrg> users = findAll();
-		if (requiredGroups == null) {
-			// No constraint on group
-			addFilteredByCompaniesAndPattern(users.keySet(), companies, criteria, result, users);
-		} else {
-			// User must be within one the given groups
-			for (final GroupOrg requiredGroup : requiredGroups) {
-				addFilteredByCompaniesAndPattern(requiredGroup.getMembers(), companies, criteria, result, users);
+		final var property = COMPARATORS.containsKey(order.getProperty()) ? order.getProperty()
+				: DEFAULT_ORDER.getProperty();
+		final var desc = order.getDirection() == Direction.DESC;
+		if (pushDown) {
+			return findAllPushDown(requiredGroups, companies, criteria, property, desc, pageable);
+		}
+
+		final var index = cacheRepository.getUserIndex();
+		final var version = cacheRepository.getVersion();
+		final var cache = cacheRepository.getResultCache();
+		final var key = cache == null ? null
+				: new UserSqlResultCache.Key(
+						requiredGroups == null ? null
+								: requiredGroups.stream().map(GroupOrg::getId).collect(Collectors.toSet()),
+						Set.copyOf(companies), Objects.toString(criteria, ""), property, desc);
+		final var cached = cache == null ? null : cache.get(key, version);
+		if (cached != null) {
+			// Repeated query, only cut the requested page
+			return toPage(cached, pageable);
+		}
+
+		final var view = index.getView(property);
+		final var pattern = index.newMatcher(criteria);
+		final var candidates = index.newCandidates(requiredGroups,
+				cacheRepository.getCompanyIndex().newMatcher(companies), criteria);
+		if (pageable.isPaged() && pageable.getOffset() + pageable.getPageSize() <= MAX_TOP_K
+				&& (long) candidates.cardinality() * TOP_K_SELECTIVITY <= view.ordinals().length) {
+			// Few candidates, select the requested rows among them without walking the whole view
+			Comparator<UserOrg> comparator = COMPARATORS.get(property).thenComparing(DEFAULT_COMPARATOR);
+			if (desc) {
+				comparator = Collections.reverseOrder(comparator);
 			}
+			return findAllTopK(index, candidates, pattern, pageable, comparator);
+		}
+		if (cache != null && candidates.cardinality() <= cache.getMaxWeight()) {
+			// Keep the whole sorted result for the next pages
+			final var users = findAllSorted(view, desc, candidates, pattern);
+			cache.put(key, version, users);
+			return toPage(users, pageable);
 		}
+		return findAllRanked(view, desc, candidates, pattern, pageable);
+	}
 
-		// Apply in-memory pagination
-		return inMemoryPagination.newPage(result, pageable);
+	/**
+	 * Return the requested page with a single paged query and a count query to the database. Neither the user index
+	 * nor the result cache are used. The criteria is checked against all the mails, and the order is the one of the
+	 * database collation.
+	 */
+	private Page<UserOrg> findAllPushDown(final Collection<GroupOrg> requiredGroups, final Set<String> companies,
+			final String criteria, final String property, final boolean desc, final Pageable pageable) {
+		final var filter = toFilter(requiredGroups, companies, criteria);
+		if (filter.isEmpty()) {
+			return new PageImpl<>(new ArrayList<>(), pageable, 0);
+		}
+		final var total = cacheSqlDao.countUsers(filter);
+		if (total == 0 || pageable.isPaged() && pageable.getOffset() >= total) {
+			return new PageImpl<>(new ArrayList<>(), pageable, total);
+		}
+		final var rows = cacheSqlDao.findUsers(filter, property, desc, null, null,
+				pageable.isPaged() ? (int) pageable.getOffset() : 0,
+				pageable.isPaged() ? pageable.getPageSize() : Integer.MAX_VALUE);
+		return new PageImpl<>(toUsers(rows), pageable, total);
+	}
+
+	/**
+	 * Return the database filters of the given groups and of the companies equal to or under one of the given
+	 * companies.
+	 */
+	private CacheSqlDao.UserFilter toFilter(final Collection<GroupOrg> requiredGroups, final Set<String> companies,
+			final String criteria) {
+		return CacheSqlDao.UserFilter.of(
+				requiredGroups == null ? null : requiredGroups.stream().map(GroupOrg::getId).toList(),
+				companyRepository.findAll().keySet(), cacheRepository.getCompanyIndex().newMatcher(companies),
+				criteria);
 	}
 
 	/**
-	 * Add the members to the result if they match to the required company and the pattern.
+	 * Build the users of the given rows, with their credential state and their memberships fetched for these users
+	 * only.
 	 */
-	private void addFilteredByCompaniesAndPattern(final Set<String> members, final Set<String> companies,
-			final String criteria, final Set<UserOrg> result, final Map<String, UserOrg> users) {
-		// Filter by company for each member
-		for (final String member : members) {
-			final UserOrg userSql = users.get(member);
+	private List<UserOrg> toUsers(final List<Object[]> rows) {
+		final var ids = rows.stream().map(r -> (String) r[0]).toList();
+		final Map<String, Object[]> credentials = new HashMap<>();
+		credentialRepository.findAllState(ids).forEach(s -> credentials.put((String) s[0], s));
+		final Map<String, List<String>> memberships = new HashMap<>();
+		cacheSqlDao.findMemberships(ids)
+				.forEach(m -> memberships.computeIfAbsent((String) m[0], k -> new ArrayList<>()).add((String) m[1]));
+		final var result = new ArrayList<UserOrg>(rows.size());
+		for (final var row : rows) {
+			final var user = toUser(row, credentials.get((String) row[0]));
+			user.setGroups(memberships.computeIfAbsent(user.getId(), k -> new ArrayList<>()));
+			result.add(user);
+		}
+		return result;
+	}
+
+	/**
+	 * Count the users matching the given filters, without sorting nor collecting them. Without criteria, this is the
+	 * cardinality of the candidates bitmap.
+	 *
+	 * @param requiredGroups The groups the users must be member of. May be <code>null</code> when there is no
+	 *                       constraint on group.
+	 * @param companies      The visible companies.
+	 * @param criteria       The optional criteria to find in the login, the first name, the last name or the first
+	 *                       mail.
+	 * @return The amount of matching users. Same as the total elements returned by
+	 *         {@link #findAll(Collection, Set, String, Pageable)}.
+	 */
+	public long count(final Collection<GroupOrg> requiredGroups, final Set<String> companies, final String criteria) {
+		if (pushDown) {
+			final var filter = toFilter(requiredGroups, companies, criteria);
+			return filter.isEmpty() ? 0 : cacheSqlDao.countUsers(filter);
+		}
+		final var index = cacheRepository.getUserIndex();
+		final var candidates = index.newCandidates(requiredGroups,
+				cacheRepository.getCompanyIndex().newMatcher(companies), criteria);
+		if (StringUtils.isEmpty(criteria)) {
+			return candidates.cardinality();
+		}
+
+		// The trigrams may be found in different fields, check the remaining candidates
+		final var pattern = index.newMatcher(criteria);
+		return candidates.stream().filter(pattern).count();
+	}
+
+	/**
+	 * Return all matching users walking the view by rank.
+	 */
+	private UserOrg[] findAllSorted(final UserSqlIndex.View view, final boolean desc, final BitSet candidates,
+			final IntPredicate pattern) {
+		final var result = new ArrayList<UserOrg>(candidates.cardinality());
+		final var sorted = view.users();
+		final var ordinals = view.ordinals();
+		for (var i = 0; i < ordinals.length; i++) {
+			final var rank = desc ? ordinals.length - 1 - i : i;
+			final var ordinal = ordinals[rank];
+			if (candidates.get(ordinal) && pattern.test(ordinal)) {
+				result.add(sorted[rank]);
+			}
+		}
+		return result.toArray(UserOrg[]::new);
+	}
+
+	/**
+	 * Return the requested page of the whole sorted users.
+	 */
+	private static Page<UserOrg> toPage(final UserOrg[] users, final Pageable pageable) {
+		if (pageable.isUnpaged()) {
+			return new PageImpl<>(new ArrayList<>(Arrays.asList(users)), pageable, users.length);
+		}
+		final var from = (int) Math.min(pageable.getOffset(), users.length);
+		final var to = (int) Math.min(pageable.getOffset() + pageable.getPageSize(), users.length);
+		return new PageImpl<>(new ArrayList<>(Arrays.asList(users).subList(from, to)), pageable, users.length);
+	}
+
+	/**
+	 * Return the users following the given cursor in the given order. The cursor is the sort key and the login of the
+	 * last returned user, so the next users are found by a binary search in the sorted view, and the pages stay
+	 * consistent when users are created, updated or deleted while paging. With the push-down mode, the cursor is a
+	 * keyset condition of the database query, so the user index is not built.
+	 *
+	 * @param requiredGroups The groups the users must be member of. May be <code>null</code> when there is no
+	 *                       constraint on group.
+	 * @param companies      The visible companies.
+	 * @param criteria       The optional criteria to find in the login, the first name, the last name or the first
+	 *                       mail.
+	 * @param order          The order. The property is one of <code>company</code>, <code>id</code>,
+	 *                       <code>firstName</code>, <code>lastName</code> or <code>mail</code>, otherwise the login
+	 *                       is used.
+	 * @param afterKey       The value of the sorted property of the last returned user. For <code>mail</code>, it is
+	 *                       the first mail. Ignored when the order is by login.
+	 * @param after          The login of the last returned user. When <code>null</code>, the first page is returned.
+	 * @param size           The maximal amount of returned users.
+	 * @return The users following the cursor.
+	 */
+	public List<UserOrg> findAllAfter(final Collection<GroupOrg> requiredGroups, final Set<String> companies,
+			final String criteria, final Sort.Order order, final String afterKey, final String after, final int size) {
+		final var property = COMPARATORS.containsKey(order.getProperty()) ? order.getProperty()
+				: DEFAULT_ORDER.getProperty();
+		final var desc = order.getDirection() == Direction.DESC;
+		if (pushDown) {
+			return findAllAfterPushDown(requiredGroups, companies, criteria, property, desc, afterKey, after, size);
+		}
+		final var index = cacheRepository.getUserIndex();
+		final var view = index.getView(property);
+		final var pattern = index.newMatcher(criteria);
+		final var candidates = index.newCandidates(requiredGroups,
+				cacheRepository.getCompanyIndex().newMatcher(companies), criteria);
+		final var sorted = view.users();
+		final var ordinals = view.ordinals();
+
+		// Locate the first rank after the cursor
+		int rank;
+		if (after == null) {
+			rank = desc ? sorted.length - 1 : 0;
+		} else {
+			final var position = Arrays.binarySearch(sorted, newProbe(property, afterKey, after),
+					COMPARATORS.get(property).thenComparing(DEFAULT_COMPARATOR));
+			if (position >= 0) {
+				rank = desc ? position - 1 : position + 1;
+			} else {
+				rank = desc ? -position - 2 : -position - 1;
+			}
+		}
 
-			// User is always found since #findAll() ensure the members of the groups exist
-			addFilteredByCompaniesAndPattern(companies, criteria, result, userSql);
+		// Walk the view from this rank
+		final var result = new ArrayList<UserOrg>(Math.max(0, Math.min(size, sorted.length)));
+		for (; rank >= 0 && rank < sorted.length && result.size() < size; rank += desc ? -1 : 1) {
+			final var ordinal = ordinals[rank];
+			if (candidates.get(ordinal) && pattern.test(ordinal)) {
+				result.add(sorted[rank]);
+			}
 		}
+		return result;
+	}
 
+	/**
+	 * Return the users following the given cursor with a single keyset query to the database. For the mails, the
+	 * database sorts the whole stored column, so the key of the cursor is the stored mails of the last returned user.
+	 */
+	private List<UserOrg> findAllAfterPushDown(final Collection<GroupOrg> requiredGroups, final Set<String> companies,
+			final String criteria, final String property, final boolean desc, final String afterKey,
+			final String after, final int size) {
+		final var filter = toFilter(requiredGroups, companies, criteria);
+		if (filter.isEmpty() || size <= 0) {
+			return new ArrayList<>();
+		}
+		var key = afterKey;
+		if ("mail".equals(property) && after != null) {
+			key = Optional.ofNullable(cacheUserRepository.findOne(after)).map(CacheUser::getMails).orElse(afterKey);
+		}
+		return toUsers(cacheSqlDao.findUsers(filter, property, desc, key, after, 0, size));
 	}
 
-	private void addFilteredByCompaniesAndPattern(final Set<String> companies, final String criteria,
-			final Set<UserOrg> result, final UserOrg userSql) {
-		final List<CompanyOrg> userCompanies = companyRepository.findAll().get(userSql.getCompany()).getCompanyTree();
-		if (userCompanies.stream().map(CompanyOrg::getId).anyMatch(companies::contains)) {
-			addFilteredByPattern(criteria, result, userSql);
+	/**
+	 * Return a user having only the given sort key and login, to be located in a sorted view.
+	 */
+	private static UserOrg newProbe(final String property, final String key, final String login) {
+		final var probe = new UserOrg();
+		probe.setId(login);
+		probe.setMails(List.of());
+		switch (property) {
+		case "company" -> probe.setCompany(key);
+		case "firstName" -> probe.setFirstName(key);
+		case "lastName" -> probe.setLastName(key);
+		case "mail" -> probe.setMails(key == null ? List.of() : List.of(key));
+		default -> {
+			// The login is the whole key
+		}
 		}
+		return probe;
 	}
 
-	private void addFilteredByPattern(final String criteria, final Set<UserOrg> result, final UserOrg userSql) {
-		if (criteria == null || matchPattern(userSql, criteria)) {
-			// Company and pattern match
-			result.add(userSql);
+	/**
+	 * Return the requested page walking the users by rank: the matching candidates are counted, and only the ones
+	 * within the requested window are retained.
+	 */
+	private Page<UserOrg> findAllRanked(final UserSqlIndex.View view, final boolean desc, final BitSet candidates,
+			final IntPredicate pattern, final Pageable pageable) {
+		final var from = pageable.isPaged() ? pageable.getOffset() : 0;
+		final var to = pageable.isPaged() ? from + pageable.getPageSize() : Long.MAX_VALUE;
+		final var content = new ArrayList<UserOrg>();
+		final var sorted = view.users();
+		final var ordinals = view.ordinals();
+		var total = 0L;
+		for (var i = 0; i < ordinals.length; i++) {
+			final var rank = desc ? ordinals.length - 1 - i : i;
+			final var ordinal = ordinals[rank];
+			if (candidates.get(ordinal) && pattern.test(ordinal)) {
+				if (total >= from && total < to) {
+					content.add(sorted[rank]);
+				}
+				total++;
+			}
 		}
+		return new PageImpl<>(content, pageable, total);
+	}
+
+	/**
+	 * Return the requested page using a bounded heap of <code>offset+size</code> users: only the best candidates are
+	 * retained and sorted, the other matching candidates are only counted.
+	 */
+	private Page<UserOrg> findAllTopK(final UserSqlIndex index, final BitSet candidates, final IntPredicate pattern,
+			final Pageable pageable, final Comparator<UserOrg> comparator) {
+		final var limit = (int) pageable.getOffset() + pageable.getPageSize();
+
+		// The head of the heap is the worst retained user
+		final var heap = new PriorityQueue<UserOrg>(limit + 1, comparator.reversed());
+		var total = 0;
+		for (var o = candidates.nextSetBit(0); o >= 0; o = candidates.nextSetBit(o + 1)) {
+			final var user = index.getUser(o);
+			if (user != null && pattern.test(o)) {
+				total++;
+				if (heap.size() < limit) {
+					heap.add(user);
+				} else if (comparator.compare(user, heap.peek()) < 0) {
+					heap.poll();
+					heap.add(user);
+				}
+			}
+		}
+
+		// Sort the retained users and cut the requested page
+		final var selected = new ArrayList<>(heap);
+		selected.sort(comparator);
+		final var content = selected.subList((int) Math.min(pageable.getOffset(), selected.size()), selected.size());
+		return new PageImpl<>(new ArrayList<>(content), pageable, total);
 	}
 
 	/**
 	 * Indicates the given user match to the given pattern.
+	 *
+	 * @param userSql  The user to check.
+	 * @param criteria The criteria to find in the login, the first name, the last name or the first mail.
+	 * @return <code>true</code> when the user matches.
+	 * @see UserSqlIndex#newMatcher(String)
 	 */
-	private boolean matchPattern(final UserOrg userSql, final String criteria) {
+	static boolean matchPattern(final UserOrg userSql, final String criteria) {
 		return Strings.CI.contains(userSql.getFirstName(), criteria)
 				|| Strings.CI.contains(userSql.getLastName(), criteria)
 				|| Strings.CI.contains(userSql.getId(), criteria)
@@ -302,6 +749,7 @@ public class UserSqlRepository implements IUserRepository {
 	public void delete(final UserOrg user) {
 		// Remove attached credentials
 		credentialRepository.deleteAllBy(USER_ID, user.getId());
+		invalidateCredential(user.getId());
 
 		// Remove user from all groups
 		removeUserFromGroups(user, user.getGroups());
@@ -363,6 +811,9 @@ public class UserSqlRepository implements IUserRepository {
 			credential.setLockedBy(principal);
 			credential.setValue(null);
 			credential.setSalt(null);
+			credential.setAlgorithm(null);
+			credential.setIterations(null);
+			credential.setKeyLength(null);
 
 			if (isolate) {
 				credential.setIsolated(user.getCompany());
@@ -371,6 +822,8 @@ public class UserSqlRepository implements IUserRepository {
 			// Also update the locked date
 			user.setLocked(credential.getLocked());
 			user.setLockedBy(principal);
+			invalidateCredential(user.getId());
+			cacheRepository.journal(CacheDataType.USER, user.getId());
 		}
 	}
 
@@ -401,13 +854,18 @@ public class UserSqlRepository implements IUserRepository {
 			// Also clear the disabled state from cache
 			user.setLocked(null);
 			user.setLockedBy(null);
+			invalidateCredential(user.getId());
+			cacheRepository.journal(CacheDataType.USER, user.getId());
 		}
 	}
 
 	@Override
 	public UserOrg authenticate(final String name, final String password) {
 		log.info("Authenticating {} ...", name);
-		final var credential = credentialRepository.findBy(USER_ID, name);
+
+		// Reject the brute force attempts before computing the hash
+		authenticationThrottle.check(name);
+		final var credential = findCredential(name);
 
 		final String salt;
 		final String value;
@@ -416,35 +874,109 @@ public class UserSqlRepository implements IUserRepository {
 			salt = "-".repeat(saltLength);
 			value = "0".repeat(16);
 		} else {
-			salt = credential.getSalt();
-			value = Objects.toString(credential.getValue(), "");
+			salt = credential.salt();
+			value = Objects.toString(credential.value(), "");
 		}
 
 		// Compare
 		final boolean result;
 		if (salt == null) {
 			// Not encrypted password
-			result = password.equals(value);
+			result = MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+					value.getBytes(StandardCharsets.UTF_8));
 		} else {
-			result = hashPassword(password.toCharArray(), salt.getBytes(StandardCharsets.UTF_8), hashIteration,
-					keyLength).equals(value);
+			// The hash is computed in the bounded stage with the parameters stored with the credential, or the legacy
+			// ones when it was hashed before they were stored
+			final var algorithm = credential == null ? secretKeyFactory
+					: Objects.requireNonNullElse(credential.algorithm(), LEGACY_ALG);
+			final int iterations = credential == null ? hashIteration
+					: Objects.requireNonNullElse(credential.iterations(), LEGACY_ITERATIONS);
+			final int length = credential == null ? keyLength
+					: Objects.requireNonNullElse(credential.keyLength(), LEGACY_KEY_LENGTH);
+			result = authenticationExecutor.execute(() -> PasswordUtils.matches(algorithm, password.toCharArray(),
+					salt.getBytes(StandardCharsets.UTF_8), iterations, length, value));
+			if (result && credential != null && !(secretKeyFactory.equals(credential.algorithm())
+					&& Objects.equals(hashIteration, credential.iterations())
+					&& Objects.equals(keyLength, credential.keyLength()))) {
+				// Not hashed with the current parameters of the node
+				rehash(name, credential, password);
+			}
 		}
 		log.info("Authenticate {} : {}", name, result);
-		return result ? findById(name) : null;
+		if (!result) {
+			authenticationThrottle.fail(name);
+			return null;
+		}
+		return findById(name);
+	}
+
+	/**
+	 * A salted hash.
+	 *
+	 * @param salt  The salt.
+	 * @param value The hashed value.
+	 */
+	private record Hash(String salt, String value) {
+	}
+
+	/**
+	 * Hash again a verified password with the current parameters of the node, in the bounded stage without waiting for
+	 * it. Skipped when the stage is full, the next successful authentication will try again. The new hash is stored
+	 * by a conditional update outside the hashing threads, only when the credential has not been changed since its
+	 * verification.
+	 *
+	 * @param login    The authenticated login.
+	 * @param verified The verified credential.
+	 * @param password The verified password.
+	 */
+	private void rehash(final String login, final UserSqlCredentialCache.Credential verified, final String password) {
+		final var algorithm = secretKeyFactory;
+		final var iterations = hashIteration;
+		final var length = keyLength;
+		authenticationExecutor.submit(() -> {
+			final var salt = GENERATOR.generate(saltLength);
+			return new Hash(salt, PasswordUtils.encode(algorithm, password.toCharArray(),
+					salt.getBytes(StandardCharsets.UTF_8), iterations, length));
+		}, hash -> {
+			final Runnable task = () -> {
+				if (credentialRepository.updateHash(login, verified.salt(), verified.value(), hash.salt(), hash.value(),
+						algorithm, iterations, length) == 1) {
+					log.info("Rehashed the credential of {} with the current parameters", login);
+					invalidateCredential(login);
+					cacheRepository.journal(CacheDataType.USER, login);
+				}
+			};
+			if (transactionManager == null) {
+				task.run();
+			} else {
+				new TransactionTemplate(transactionManager).executeWithoutResult(s -> task.run());
+			}
+		});
 	}
 
 	@Override
 	public String getToken(final String login) {
-		return Optional.ofNullable(credentialRepository.findBy(USER_ID, login)).map(UserSqlCredential::getValue)
-				.orElse(null);
+		return Optional.ofNullable(findCredential(login)).map(UserSqlCredentialCache.Credential::value).orElse(null);
 	}
 
 	@Override
 	public void setPassword(final UserOrg user, final String password) {
-		final UserSqlCredential credential = createAsNeeded(user);
+		setHash(createAsNeeded(user), password);
+		invalidateCredential(user.getId());
+		cacheRepository.journal(CacheDataType.USER, user.getId());
+	}
+
+	/**
+	 * Hash a password with a new salt and the current parameters of the node, and store these parameters with the
+	 * credential.
+	 */
+	private void setHash(final UserSqlCredential credential, final String password) {
 		credential.setSalt(GENERATOR.generate(saltLength));
 		credential.setValue(hashPassword(password.toCharArray(), credential.getSalt().getBytes(StandardCharsets.UTF_8),
 				hashIteration, keyLength));
+		credential.setAlgorithm(secretKeyFactory);
+		credential.setIterations(hashIteration);
+		credential.setKeyLength(keyLength);
 	}
 
 	/**
@@ -466,14 +998,7 @@ public class UserSqlRepository implements IUserRepository {
 	 * @see <a href="https://www.owasp.org/index.php/Hashing_Java">www.owasp.org</a>
 	 */
 	private String hashPassword(final char[] password, final byte[] salt, final int iterations, final int keyLength) {
-
-		try {
-			final SecretKeyFactory skf = SecretKeyFactory.getInstance(secretKeyFactory);
-			return Base64.getEncoder().encodeToString(
-					skf.generateSecret(new PBEKeySpec(password, salt, iterations, keyLength)).getEncoded());
-		} catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-			throw new TechnicalException("password-security", e);
-		}
+		return PasswordUtils.encode(secretKeyFactory, password, salt, iterations, keyLength);
 	}
 
 	@Override
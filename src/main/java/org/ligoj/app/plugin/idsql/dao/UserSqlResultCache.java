@@ -0,0 +1,137 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.ligoj.app.iam.UserOrg;
+
+import lombok.Getter;
+
+/**
+ * Bounded cache of the filtered and sorted users of the listing queries. The entries are evicted in the least
+ * recently used order when the total weight exceeds the limit. The weight of an entry is the amount of its users. All
+ * entries are dropped when the version of the identity data changes.
+ */
+public class UserSqlResultCache {
+
+	/**
+	 * The cache key: the query without the requested page.
+	 *
+	 * @param groups    The identifiers of the required groups. <code>null</code> when there is no constraint on group.
+	 * @param companies The visible companies.
+	 * @param criteria  The optional criteria.
+	 * @param property  The sorted property.
+	 * @param desc      <code>true</code> for the descending order.
+	 */
+	public record Key(Set<String> groups, Set<String> companies, String criteria, String property, boolean desc) {
+	}
+
+	/**
+	 * Cached entries, in the access order.
+	 */
+	private final LinkedHashMap<Key, UserOrg[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Maximal total weight of the entries.
+	 */
+	@Getter
+	private final int maxWeight;
+
+	/**
+	 * Current total weight of the entries.
+	 */
+	private long weight;
+
+	/**
+	 * Version of the identity data the entries are computed from.
+	 */
+	private long version;
+
+	/**
+	 * Amount of served entries.
+	 */
+	@Getter
+	private long hits;
+
+	/**
+	 * Amount of missed entries.
+	 */
+	@Getter
+	private long misses;
+
+	/**
+	 * Build an empty cache.
+	 *
+	 * @param maxWeight The maximal total weight of the entries.
+	 */
+	public UserSqlResultCache(final int maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Return the cached users of a query.
+	 *
+	 * @param key     The query.
+	 * @param version The current version of the identity data.
+	 * @return The cached sorted users, or <code>null</code> when not cached for this version.
+	 */
+	public synchronized UserOrg[] get(final Key key, final long version) {
+		sync(version);
+		final var users = entries.get(key);
+		if (users == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return users;
+	}
+
+	/**
+	 * Cache the users of a query. Ignored when the users have been computed from a previous version of the identity
+	 * data, or when they are heavier than the whole cache.
+	 *
+	 * @param key     The query.
+	 * @param version The version of the identity data the users are computed from.
+	 * @param users   The sorted users.
+	 */
+	public synchronized void put(final Key key, final long version, final UserOrg[] users) {
+		sync(version);
+		if (version < this.version || users.length > maxWeight) {
+			return;
+		}
+		final var previous = entries.put(key, users);
+		weight += users.length - (previous == null ? 0 : previous.length);
+
+		// Evict the least recently used entries
+		final Iterator<Map.Entry<Key, UserOrg[]>> iterator = entries.entrySet().iterator();
+		while (weight > maxWeight) {
+			weight -= iterator.next().getValue().length;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Drop the entries computed from a previous version of the identity data.
+	 */
+	private void sync(final long version) {
+		if (version > this.version) {
+			entries.clear();
+			weight = 0;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Return the amount of cached entries.
+	 *
+	 * @return The amount of cached entries.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+}
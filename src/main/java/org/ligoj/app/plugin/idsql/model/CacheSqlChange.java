@@ -0,0 +1,60 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.model;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.validation.constraints.NotNull;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.ligoj.app.plugin.id.dao.AbstractMemCacheRepository.CacheDataType;
+import org.ligoj.bootstrap.core.model.AbstractPersistable;
+
+import java.time.Instant;
+
+/**
+ * Change journal of the IAM cache. Used to refresh the in-memory data without a full reload.
+ */
+@Entity
+@Table(name = "LIGOJ_ID_SQL_CHANGE", indexes = @Index(columnList = "changed"))
+@Getter
+@Setter
+@NoArgsConstructor
+public class CacheSqlChange extends AbstractPersistable<Integer> {
+
+	/**
+	 * Changed resource type.
+	 */
+	@NotNull
+	@Enumerated(EnumType.STRING)
+	private CacheDataType type;
+
+	/**
+	 * Changed resource identifier.
+	 */
+	@NotNull
+	private String resource;
+
+	/**
+	 * Change date. Indexed for the reads of the recent changes and the purge of the old ones.
+	 */
+	@NotNull
+	private Instant changed;
+
+	/**
+	 * All arguments constructor.
+	 *
+	 * @param type     Changed resource type.
+	 * @param resource Changed resource identifier.
+	 */
+	public CacheSqlChange(final CacheDataType type, final String resource) {
+		this.type = type;
+		this.resource = resource;
+		this.changed = Instant.now();
+	}
+}
@@ -43,6 +43,22 @@ public class UserSqlCredential extends AbstractPersistable<Integer> {
 	@Size(min = 1)
 	private String value;
 
+	/**
+	 * Secret key factory algorithm of the hashed {@link #value}. When <code>null</code>, the one of the node is used.
+	 */
+	@Size(min = 1)
+	private String algorithm;
+
+	/**
+	 * Iteration count of the hashed {@link #value}. When <code>null</code>, the one of the node is used.
+	 */
+	private Integer iterations;
+
+	/**
+	 * Key length in bits of the hashed {@link #value}. When <code>null</code>, the one of the node is used.
+	 */
+	private Integer keyLength;
+
 	/**
 	 * When not <code>null</code>, this user is locked and the date corresponds to the moment.
 	 */
@@ -7,11 +7,16 @@ import jakarta.transaction.Transactional;
 import jakarta.transaction.Transactional.TxType;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.ligoj.app.api.Normalizer;
 import org.ligoj.app.api.SubscriptionStatusWithData;
+import org.ligoj.app.iam.CompanyOrg;
 import org.ligoj.app.iam.GroupOrg;
 import org.ligoj.app.iam.IamProvider;
 import org.ligoj.app.iam.UserOrg;
@@ -21,7 +26,12 @@ import org.ligoj.app.model.Project;
 import org.ligoj.app.plugin.id.dao.CacheProjectGroupRepository;
 import org.ligoj.app.plugin.id.model.ContainerScope;
 import org.ligoj.app.plugin.id.resource.*;
+import org.ligoj.app.plugin.idsql.dao.AuthenticationExecutor;
+import org.ligoj.app.plugin.idsql.dao.AuthenticationThrottle;
+import org.ligoj.app.plugin.idsql.dao.CacheSqlRepository;
+import org.ligoj.app.plugin.idsql.dao.CompanySqlRepository;
 import org.ligoj.app.plugin.idsql.dao.GroupSqlRepository;
+import org.ligoj.app.plugin.idsql.dao.UserSqlIndex;
 import org.ligoj.app.plugin.idsql.dao.UserSqlRepository;
 import org.ligoj.app.resource.ServicePluginLocator;
 import org.ligoj.bootstrap.core.INamableBean;
@@ -30,10 +40,15 @@ import org.ligoj.bootstrap.core.SpringUtils;
 import org.ligoj.bootstrap.core.resource.BusinessException;
 import org.ligoj.bootstrap.core.validation.ValidationJsonException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  * SQL resource.
@@ -47,6 +62,19 @@ public class SqlPluginResource extends AbstractPluginIdResource<UserSqlRepositor
 
 	private static final String PATTERN_PROPERTY = "pattern";
 
+	/**
+	 * Maximal amount of resources returned by a page of the cursor listings.
+	 */
+	private static final int MAX_PAGE_SIZE = 1000;
+
+	/**
+	 * Media type of the newline-delimited JSON export.
+	 */
+	public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
 	/**
 	 * Plug-in key.
 	 */
@@ -79,15 +107,33 @@ public class SqlPluginResource extends AbstractPluginIdResource<UserSqlRepositor
 	 */
 	public static final String PARAMETER_KEY_ALG = KEY + ":key-alg";
 
+	/**
+	 * When <code>true</code>, the user listings are filtered, sorted and paged by the database instead of the in
+	 * memory index.
+	 */
+	public static final String PARAMETER_PUSH_DOWN = KEY + ":push-down";
+
 	@Autowired
 	protected GroupResource groupResource;
 
+	@Autowired
+	private CompanyResource companyResource;
+
 	@Autowired
 	private ContainerScopeResource containerScopeResource;
 
 	@Autowired
 	private CacheProjectGroupRepository cacheProjectGroupRepository;
 
+	@Autowired
+	private CacheSqlRepository cacheRepository;
+
+	@Autowired
+	private AuthenticationExecutor authenticationExecutor;
+
+	@Autowired
+	private AuthenticationThrottle authenticationThrottle;
+
 	@Autowired
 	private IamProvider[] iamProvider;
 
@@ -105,10 +151,11 @@ public class SqlPluginResource extends AbstractPluginIdResource<UserSqlRepositor
 
 		// A new repository instance
 		final UserSqlRepository repository = new UserSqlRepository();
-		repository.setSaltLength(Integer.parseInt(parameters.getOrDefault(PARAMETER_SALT_LENGTH, "64"), 10));
-		repository.setHashIteration(Integer.parseInt(parameters.getOrDefault(PARAMETER_HASH_ITERATION, "10"), 10));
-		repository.setKeyLength(Integer.parseInt(parameters.getOrDefault(PARAMETER_KEY_LENGTH, "256"), 10));
+		repository.setSaltLength(getInt(parameters, PARAMETER_SALT_LENGTH, 64));
+		repository.setHashIteration(getInt(parameters, PARAMETER_HASH_ITERATION, 10));
+		repository.setKeyLength(getInt(parameters, PARAMETER_KEY_LENGTH, 256));
 		repository.setSecretKeyFactory(parameters.getOrDefault(PARAMETER_KEY_ALG, DEFAULT_ALG));
+		repository.setPushDown(Boolean.parseBoolean(parameters.getOrDefault(PARAMETER_PUSH_DOWN, "false")));
 
 		// Complete the bean
 		SpringUtils.getApplicationContext().getAutowireCapableBeanFactory().autowireBean(repository);
@@ -116,6 +163,10 @@ public class SqlPluginResource extends AbstractPluginIdResource<UserSqlRepositor
 		return repository;
 	}
 
+	private static int getInt(final Map<String, String> parameters, final String parameter, final int defaultValue) {
+		return Integer.parseInt(parameters.getOrDefault(parameter, String.valueOf(defaultValue)), 10);
+	}
+
 	@Override
 	public boolean accept(final Authentication authentication, final String node) {
 		final Map<String, String> parameters = pvResource.getNodeParameters(node);
@@ -307,6 +358,253 @@ public class SqlPluginResource extends AbstractPluginIdResource<UserSqlRepositor
 		return result;
 	}
 
+	/**
+	 * Return the visible users following the given cursor. The next page is requested with the sort key and the login
+	 * of the last returned user.
+	 *
+	 * @param criteria The optional criteria to find in the login, the first name, the last name or the first mail.
+	 * @param sort     The sorted property, among <code>company</code>, <code>id</code>, <code>firstName</code>,
+	 *                 <code>lastName</code> and <code>mail</code>. The login when not set.
+	 * @param desc     When <code>true</code>, the order is descending.
+	 * @param afterKey The value of the sorted property of the last returned user.
+	 * @param after    The login of the last returned user. When <code>null</code>, the first page is returned.
+	 * @param size     The maximal amount of returned users, bounded to {@value #MAX_PAGE_SIZE}.
+	 * @return The users following the cursor.
+	 */
+	@GET
+	@Path("user/after")
+	public List<UserOrg> findUsersAfter(@QueryParam("q") final String criteria, @QueryParam("sort") final String sort,
+			@QueryParam("desc") final boolean desc, @QueryParam("afterKey") final String afterKey,
+			@QueryParam("after") final String after, @QueryParam("size") @DefaultValue("100") final int size) {
+		final var companies = companyResource.getContainers().stream().map(CompanyOrg::getId)
+				.collect(Collectors.toSet());
+		final var order = new Sort.Order(desc ? Direction.DESC : Direction.ASC, StringUtils.defaultIfEmpty(sort, "id"));
+		return getUser().findAllAfter(null, companies, criteria, order, afterKey, after, toPageSize(size));
+	}
+
+	/**
+	 * Return the visible companies following the given cursor, ordered by identifier.
+	 *
+	 * @param criteria The optional criteria to find in the name.
+	 * @param after    The identifier of the last returned company. When <code>null</code>, the first page is returned.
+	 * @param size     The maximal amount of returned companies, bounded to {@value #MAX_PAGE_SIZE}.
+	 * @return The companies following the cursor.
+	 */
+	@GET
+	@Path("company/after")
+	public List<CompanyOrg> findCompaniesAfter(@QueryParam("q") final String criteria,
+			@QueryParam("after") final String after, @QueryParam("size") @DefaultValue("100") final int size) {
+		return getCompany().findAllAfter(companyResource.getContainers(), criteria, after, toPageSize(size));
+	}
+
+	/**
+	 * Return the visible groups following the given cursor, ordered by identifier.
+	 *
+	 * @param criteria The optional criteria to find in the name.
+	 * @param after    The identifier of the last returned group. When <code>null</code>, the first page is returned.
+	 * @param size     The maximal amount of returned groups, bounded to {@value #MAX_PAGE_SIZE}.
+	 * @return The groups following the cursor.
+	 */
+	@GET
+	@Path("group/after")
+	public List<GroupOrg> findGroupsAfter(@QueryParam("q") final String criteria,
+			@QueryParam("after") final String after, @QueryParam("size") @DefaultValue("100") final int size) {
+		return getGroup().findAllAfter(groupResource.getContainers(), criteria, after, toPageSize(size));
+	}
+
+	/**
+	 * Count the visible users matching the given criteria, without sorting nor collecting them.
+	 *
+	 * @param criteria The optional criteria to find in the login, the first name, the last name or the first mail.
+	 * @return The amount of matching users.
+	 */
+	@GET
+	@Path("user/count")
+	public long countUsers(@QueryParam("q") final String criteria) {
+		final var companies = companyResource.getContainers().stream().map(CompanyOrg::getId)
+				.collect(Collectors.toSet());
+		return getUser().count(null, companies, criteria);
+	}
+
+	/**
+	 * Count the visible companies having the given criteria in their name.
+	 *
+	 * @param criteria The optional criteria to find in the name.
+	 * @return The amount of matching companies.
+	 */
+	@GET
+	@Path("company/count")
+	public long countCompanies(@QueryParam("q") final String criteria) {
+		return getCompany().count(companyResource.getContainers(), criteria);
+	}
+
+	/**
+	 * Count the visible groups having the given criteria in their name.
+	 *
+	 * @param criteria The optional criteria to find in the name.
+	 * @return The amount of matching groups.
+	 */
+	@GET
+	@Path("group/count")
+	public long countGroups(@QueryParam("q") final String criteria) {
+		return getGroup().count(groupResource.getContainers(), criteria);
+	}
+
+	private static int toPageSize(final int size) {
+		return Math.clamp(size, 0, MAX_PAGE_SIZE);
+	}
+
+	/**
+	 * Return the counters of the shared identity data and of the authentication stages, since the start.
+	 *
+	 * @return The counters, by name.
+	 */
+	@GET
+	@Path("status")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> getStatus() {
+		final Map<String, Object> result = new LinkedHashMap<>();
+		result.put("refresh", cacheRepository.getRefreshCount());
+		result.put("refresh-coalesced", cacheRepository.getCoalescedCount());
+		result.put("auth-executed", authenticationExecutor.getExecutedCount());
+		result.put("auth-rejected", authenticationExecutor.getRejectedCount());
+		result.put("auth-queue", authenticationExecutor.getQueueDepth());
+		result.put("auth-wait", authenticationExecutor.getAverageWait());
+		result.put("auth-throttled", authenticationThrottle.getRejectedCount());
+		return result;
+	}
+
+	/**
+	 * Export the visible companies, groups, users and memberships as newline-delimited JSON, one object per line, in
+	 * a single pass over the cached identity data. Each line has a <code>type</code> property among
+	 * <code>company</code>, <code>group</code>, <code>user</code> and <code>membership</code>.
+	 *
+	 * @param companies The optional company filter. When not empty, only the companies and the users under one of
+	 *                  them are exported.
+	 * @param groups    The optional group filter. When not empty, only these groups, their memberships and their
+	 *                  user members are exported.
+	 * @return The streamed export.
+	 */
+	@GET
+	@Path("export")
+	@Produces(APPLICATION_NDJSON)
+	public StreamingOutput export(@QueryParam("company") final List<String> companies,
+			@QueryParam("group") final List<String> groups) {
+		// Resolve the visible containers within the security context of the request
+		final var companyIndex = cacheRepository.getCompanyIndex();
+		final var visibleCompanies = companyIndex.newMatcher(
+				companyResource.getContainers().stream().map(CompanyOrg::getId).collect(Collectors.toSet()));
+		final var inCompanies = CollectionUtils.isEmpty(companies) ? visibleCompanies
+				: visibleCompanies.and(companyIndex.newMatcher(
+						companies.stream().map(Normalizer::normalize).collect(Collectors.toSet())));
+		final var groupFilter = CollectionUtils.isEmpty(groups) ? null
+				: groups.stream().map(Normalizer::normalize).collect(Collectors.toSet());
+		final var exportedGroups = groupResource.getContainers().stream()
+				.filter(g -> groupFilter == null || groupFilter.contains(g.getId()))
+				.sorted(Comparator.comparing(GroupOrg::getId)).toList();
+
+		// Select the users from the snapshot index, or from the snapshot without building the index in push-down mode
+		final var exportedUsers = getUser().isPushDown() ? findExportedUsers(exportedGroups, groupFilter, inCompanies)
+				: findExportedUsers(cacheRepository.getUserIndex(), exportedGroups, groupFilter, inCompanies);
+		final var exportedUserIds = exportedUsers.stream().map(UserOrg::getId).collect(Collectors.toSet());
+		final var exportedGroupIds = exportedGroups.stream().map(GroupOrg::getId).collect(Collectors.toSet());
+		final Collection<CompanyOrg> allCompanies = getCompany().findAll().values();
+		return out -> {
+			try (var json = JSON_FACTORY.createGenerator(out)) {
+				for (final var company : allCompanies) {
+					if (inCompanies.test(company.getId())) {
+						writeLine(json, "company", company.getId(), company.getName(), company.getDn());
+					}
+				}
+				for (final var group : exportedGroups) {
+					writeLine(json, "group", group.getId(), group.getName(), group.getDn());
+				}
+				for (final var user : exportedUsers) {
+					writeUser(json, user);
+				}
+				for (final var group : exportedGroups) {
+					for (final var member : group.getMembers()) {
+						if (exportedUserIds.contains(member)) {
+							writeMembership(json, group.getId(), "user", member);
+						}
+					}
+					for (final var subGroup : group.getSubGroups()) {
+						if (exportedGroupIds.contains(subGroup)) {
+							writeMembership(json, group.getId(), "subGroup", subGroup);
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Return the exported users sorted by login, selected by the user index.
+	 */
+	private static List<UserOrg> findExportedUsers(final UserSqlIndex index, final List<GroupOrg> exportedGroups,
+			final Set<String> groupFilter, final Predicate<String> inCompanies) {
+		final var candidates = index.newCandidates(groupFilter == null ? null : exportedGroups, inCompanies, null);
+		final var view = index.getView("id");
+		final var result = new ArrayList<UserOrg>(candidates.cardinality());
+		for (var rank = 0; rank < view.ordinals().length; rank++) {
+			if (candidates.get(view.ordinals()[rank])) {
+				result.add(view.users()[rank]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the exported users sorted by login, selected by walking the cached users.
+	 */
+	private List<UserOrg> findExportedUsers(final List<GroupOrg> exportedGroups, final Set<String> groupFilter,
+			final Predicate<String> inCompanies) {
+		final var members = groupFilter == null ? null
+				: exportedGroups.stream().flatMap(g -> g.getMembers().stream()).collect(Collectors.toSet());
+		return getUser().findAll().values().stream()
+				.filter(u -> inCompanies.test(u.getCompany()) && (members == null || members.contains(u.getId())))
+				.sorted(Comparator.comparing(UserOrg::getId)).toList();
+	}
+
+	private void writeLine(final JsonGenerator json, final String type, final String id, final String name,
+			final String dn) throws IOException {
+		json.writeStartObject();
+		json.writeStringField("type", type);
+		json.writeStringField("id", id);
+		json.writeStringField("name", name);
+		json.writeStringField("dn", dn);
+		json.writeEndObject();
+		json.writeRaw('\n');
+	}
+
+	private void writeUser(final JsonGenerator json, final UserOrg user) throws IOException {
+		json.writeStartObject();
+		json.writeStringField("type", "user");
+		json.writeStringField("id", user.getId());
+		json.writeStringField("firstName", user.getFirstName());
+		json.writeStringField("lastName", user.getLastName());
+		json.writeStringField("company", user.getCompany());
+		json.writeStringField("dn", user.getDn());
+		json.writeArrayFieldStart("mails");
+		for (final var mail : CollectionUtils.emptyIfNull(user.getMails())) {
+			json.writeString(mail);
+		}
+		json.writeEndArray();
+		json.writeBooleanField("locked", user.getLocked() != null);
+		json.writeEndObject();
+		json.writeRaw('\n');
+	}
+
+	private void writeMembership(final JsonGenerator json, final String group, final String memberType,
+			final String member) throws IOException {
+		json.writeStartObject();
+		json.writeStringField("type", "membership");
+		json.writeStringField("group", group);
+		json.writeStringField(memberType, member);
+		json.writeEndObject();
+		json.writeRaw('\n');
+	}
+
 	@Override
 	public void delete(final int subscription, final boolean deleteRemoteData) {
 		if (deleteRemoteData) {
@@ -365,6 +663,24 @@ public class SqlPluginResource extends AbstractPluginIdResource<UserSqlRepositor
 		return (GroupSqlRepository) iamProvider[0].getConfiguration().getGroupRepository();
 	}
 
+	/**
+	 * Company repository provider.
+	 *
+	 * @return Company repository provider.
+	 */
+	private CompanySqlRepository getCompany() {
+		return (CompanySqlRepository) iamProvider[0].getConfiguration().getCompanyRepository();
+	}
+
+	/**
+	 * User repository provider.
+	 *
+	 * @return User repository provider.
+	 */
+	private UserSqlRepository getUser() {
+		return (UserSqlRepository) iamProvider[0].getConfiguration().getUserRepository();
+	}
+
 	/**
 	 * Generate an application login from an account.
 	 *
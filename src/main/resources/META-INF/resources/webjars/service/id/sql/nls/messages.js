@@ -6,6 +6,7 @@ define({
 		'service:id:sql:salt-length': 'Salt string length used to build the credential hash',
 		'service:id:sql:hash-iteration': 'Hash iteration count',
 		'service:id:sql:key-length': 'Hash key length',
+		'service:id:sql:push-down': 'Filter, sort and page the user listings with database queries instead of the in memory index, for very large directories',
 	},
 	fr: true
 });
@@ -0,0 +1,85 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.AuthenticationServiceException;
+
+/**
+ * Test class of {@link AuthenticationExecutor}
+ */
+class AuthenticationExecutorTest {
+
+	private AuthenticationExecutor executor;
+
+	@BeforeEach
+	void init() {
+		executor = new AuthenticationExecutor();
+		executor.configure(1, 1);
+	}
+
+	@AfterEach
+	void destroy() {
+		executor.destroy();
+	}
+
+	@Test
+	void execute() {
+		Assertions.assertTrue(executor.execute(() -> Thread.currentThread().getName().startsWith("id-sql-auth-")));
+		Assertions.assertEquals(1, executor.getExecutedCount());
+		Assertions.assertEquals(0, executor.getQueueDepth());
+		Assertions.assertTrue(executor.getAverageWait() >= 0);
+	}
+
+	@Test
+	void executeFailed() {
+		Assertions.assertThrows(IllegalStateException.class, () -> executor.execute(() -> {
+			throw new IllegalStateException();
+		}));
+	}
+
+	@Test
+	void executeError() {
+		Assertions.assertEquals("hash", Assertions.assertThrows(AssertionError.class, () -> executor.execute(() -> {
+			throw new AssertionError("hash");
+		})).getMessage());
+	}
+
+	@Test
+	void executeRejected() throws InterruptedException {
+		final var started = new CountDownLatch(1);
+		final var release = new CountDownLatch(1);
+		final var running = CompletableFuture.supplyAsync(() -> executor.execute(() -> {
+			started.countDown();
+			await(release);
+			return 1;
+		}));
+		started.await();
+		final var queued = CompletableFuture.supplyAsync(() -> executor.execute(() -> 2));
+		while (executor.getQueueDepth() == 0) {
+			Thread.yield();
+		}
+
+		// The single thread is busy and the queue is full
+		Assertions.assertThrows(AuthenticationServiceException.class, () -> executor.execute(() -> 3));
+		Assertions.assertEquals(1, executor.getRejectedCount());
+		release.countDown();
+		Assertions.assertEquals(1, running.join());
+		Assertions.assertEquals(2, queued.join());
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Test class of {@link AuthenticationThrottle}
+ */
+class AuthenticationThrottleTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private AuthenticationThrottle throttle;
+
+	@BeforeEach
+	void init() {
+		throttle = new AuthenticationThrottle();
+
+		// One failure every 10 seconds per login with 3 consecutive ones, and 12 failures per minute per address
+		throttle.configure(6, 3, 12, 5);
+	}
+
+	@Test
+	void checkLogin() {
+		throttle.fail("user", null, 0);
+		throttle.fail("USER", null, 0);
+		throttle.check("user", null, 0);
+		throttle.fail("user", null, 0);
+		Assertions.assertThrows(AuthenticationServiceException.class, () -> throttle.check("user", null, SECOND));
+		Assertions.assertEquals(1, throttle.getRejectedCount());
+
+		// Another login has its own budget
+		throttle.check("other", null, SECOND);
+
+		// Refilled lazily
+		throttle.check("user", null, 10 * SECOND);
+		throttle.fail("user", null, 10 * SECOND);
+		Assertions.assertThrows(AuthenticationServiceException.class,
+				() -> throttle.check("user", null, 10 * SECOND));
+		throttle.check("user", null, 60 * SECOND);
+	}
+
+	@Test
+	void checkSuccessNotCharged() {
+		for (var i = 0; i < 100; i++) {
+			throttle.check("user", "10.0.0.1", 0);
+		}
+		Assertions.assertEquals(0, throttle.getRejectedCount());
+	}
+
+	@Test
+	void checkSource() {
+		for (var i = 0; i < 5; i++) {
+			throttle.check("user" + i, "10.0.0.1", 0);
+			throttle.fail("user" + i, "10.0.0.1", 0);
+		}
+		Assertions.assertThrows(AuthenticationServiceException.class, () -> throttle.check("user5", "10.0.0.1", 0));
+		throttle.check("user5", "10.0.0.2", 0);
+		throttle.check("user6", "10.0.0.1", 5 * SECOND);
+	}
+
+	@Test
+	void checkDisabled() {
+		throttle.configure(0, 1, 0, 1);
+		for (var i = 0; i < 100; i++) {
+			throttle.fail("user", "10.0.0.1", 0);
+		}
+		throttle.check("user", "10.0.0.1", 0);
+		throttle.check("user");
+		throttle.fail("user");
+		Assertions.assertEquals(0, throttle.getRejectedCount());
+	}
+
+	@Test
+	void checkDefault() {
+		final var defaults = new AuthenticationThrottle();
+		for (var i = 0; i < 1000; i++) {
+			defaults.fail("user", "10.0.0.1", 0);
+		}
+		defaults.check("user", "10.0.0.1", 0);
+	}
+
+	@Test
+	void getSource() {
+		Assertions.assertNull(throttle.getSource());
+		final var request = Mockito.mock(HttpServletRequest.class);
+		Mockito.when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+		Mockito.when(request.getHeader("X-Forwarded-For")).thenReturn("1.1.1.1, 2.2.2.2 ");
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+		try {
+			Assertions.assertEquals("10.0.0.1", throttle.getSource());
+
+			// Trusted header of the reverse proxy
+			throttle.setSourceHeader("X-Forwarded-For");
+			Assertions.assertEquals("2.2.2.2", throttle.getSource());
+			throttle.setSourceHeader("X-Real-IP");
+			Assertions.assertEquals("10.0.0.1", throttle.getSource());
+		} finally {
+			RequestContextHolder.resetRequestAttributes();
+		}
+	}
+}
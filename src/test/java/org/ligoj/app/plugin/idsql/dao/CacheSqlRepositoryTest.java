@@ -9,13 +9,18 @@ import org.junit.jupiter.api.Test;
 import org.ligoj.app.iam.*;
 import org.ligoj.app.plugin.id.dao.AbstractMemCacheRepository.CacheDataType;
 import org.ligoj.app.plugin.id.dao.IdCacheDao;
+import org.ligoj.app.plugin.idsql.model.CacheSqlChange;
 import org.ligoj.bootstrap.AbstractDataGeneratorTest;
 import org.ligoj.bootstrap.core.INamableBean;
 import org.ligoj.bootstrap.core.SpringUtils;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 import org.springframework.context.ApplicationContext;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Test class of {@link CacheSqlRepository}
@@ -29,12 +34,15 @@ class CacheSqlRepositoryTest extends AbstractDataGeneratorTest {
 	private Map<String, UserOrg> users;
 	private CacheSqlRepository repository;
 	private IdCacheDao cache;
+	private UserSqlRepository userRepository;
+	private GroupSqlRepository groupRepository;
+	private CompanySqlRepository companyRepository;
 
 	@BeforeEach
 	void init() {
-		final var companyRepository = Mockito.mock(CompanySqlRepository.class);
-		final var groupRepository = Mockito.mock(GroupSqlRepository.class);
-		final var userRepository = Mockito.mock(UserSqlRepository.class);
+		companyRepository = Mockito.mock(CompanySqlRepository.class);
+		groupRepository = Mockito.mock(GroupSqlRepository.class);
+		userRepository = Mockito.mock(UserSqlRepository.class);
 		final var iamProvider = Mockito.mock(IamProvider.class);
 		final ApplicationContext applicationContext = Mockito.mock(ApplicationContext.class);
 		SpringUtils.setSharedApplicationContext(applicationContext);
@@ -112,6 +120,231 @@ class CacheSqlRepositoryTest extends AbstractDataGeneratorTest {
 		Assertions.assertEquals("company", user2.getCompany());
 	}
 
+	@Test
+	void getDataParallel() {
+		repository.setParallelism(3);
+		try {
+			final var dataImpl = repository.getData();
+			Assertions.assertSame(companies, dataImpl.get(CacheDataType.COMPANY));
+			Assertions.assertSame(groups, dataImpl.get(CacheDataType.GROUP));
+			Assertions.assertSame(users, dataImpl.get(CacheDataType.USER));
+
+			// The reads are started concurrently, then consumed by the same reload as the sequential one
+			Mockito.verify(groupRepository).prefetch(ArgumentMatchers.notNull());
+			Mockito.verify(userRepository).prefetch(ArgumentMatchers.notNull());
+			Mockito.verify(userRepository).findAllNoCache(groups);
+			Mockito.verify(groupRepository).prefetch(null);
+			Mockito.verify(userRepository).prefetch(null);
+		} finally {
+			repository.destroy();
+		}
+	}
+
+	@Test
+	void getDataParallelFailed() {
+		Mockito.when(groupRepository.findAllNoCache()).thenThrow(new IllegalStateException("group"));
+		repository.setParallelism(2);
+		try {
+			Assertions.assertEquals("group",
+					Assertions.assertThrows(IllegalStateException.class, repository::getData).getMessage());
+
+			// The pending reads are dropped
+			Mockito.verify(userRepository).prefetch(null);
+		} finally {
+			repository.destroy();
+		}
+	}
+
+	@Test
+	void getDataSingleFlight() throws Exception {
+		final var latch = new CountDownLatch(1);
+		Mockito.when(userRepository.findAllNoCache(groups)).thenAnswer(i -> {
+			latch.await(10, TimeUnit.SECONDS);
+			return users;
+		});
+		final var executor = Executors.newFixedThreadPool(2);
+		try {
+			final var first = executor.submit(repository::getData);
+			while (repository.getRefreshCount() == 0) {
+				Thread.onSpinWait();
+			}
+
+			// This call is coalesced with the running refresh
+			final var second = executor.submit(repository::getData);
+			while (repository.getCoalescedCount() == 0) {
+				Thread.onSpinWait();
+			}
+			latch.countDown();
+			Assertions.assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+		Assertions.assertEquals(1, repository.getRefreshCount());
+		Assertions.assertEquals(1, repository.getCoalescedCount());
+		Mockito.verify(userRepository, Mockito.times(1)).findAllNoCache(groups);
+	}
+
+	@Test
+	void getDataFirstLoadRead() {
+		Mockito.when(userRepository.findAllNoCache(groups)).thenAnswer(i -> {
+			// Read of the data by the first load itself, nothing is published yet
+			Assertions.assertTrue(repository.getData().get(CacheDataType.USER).isEmpty());
+			return users;
+		});
+		Assertions.assertSame(users, repository.getData().get(CacheDataType.USER));
+		Assertions.assertEquals(1, repository.getRefreshCount());
+		Assertions.assertEquals(0, repository.getCoalescedCount());
+	}
+
+	@Test
+	void getDataSingleFlightFailed() {
+		Mockito.when(userRepository.findAllNoCache(groups)).thenThrow(new IllegalStateException("any"));
+		Assertions.assertThrows(IllegalStateException.class, repository::getData);
+		Assertions.assertEquals(1, repository.getRefreshCount());
+
+		// The failure does not block the next refresh
+		Mockito.doReturn(users).when(userRepository).findAllNoCache(groups);
+		Assertions.assertEquals(users, repository.getData().get(CacheDataType.USER));
+		Assertions.assertEquals(2, repository.getRefreshCount());
+	}
+
+	@Test
+	void getDataStaleWhileRevalidate() {
+		final var data = repository.getData();
+		Assertions.assertEquals(1, repository.getRefreshCount());
+		repository.configure(3600, 3600);
+		try {
+			// Current data are served, the refresh is done in background
+			final var latch = new CountDownLatch(1);
+			Mockito.when(userRepository.findAllNoCache(groups)).thenAnswer(i -> {
+				latch.await(10, TimeUnit.SECONDS);
+				return users;
+			});
+			Assertions.assertEquals(data, repository.getData());
+			latch.countDown();
+			final var timeout = System.currentTimeMillis() + 10000;
+			while (repository.getRefreshCount() < 2 && System.currentTimeMillis() < timeout) {
+				Thread.onSpinWait();
+			}
+			Assertions.assertEquals(2, repository.getRefreshCount());
+		} finally {
+			repository.destroy();
+		}
+	}
+
+	@Test
+	void getDataTooStale() {
+		repository.getData();
+		repository.configure(3600, 0);
+		try {
+			// Data are too old, synchronous refresh
+			repository.getData();
+			Assertions.assertEquals(2, repository.getRefreshCount());
+
+			// Disable the background refresh
+			repository.configure(0, 0);
+			repository.configure(0, 0);
+			repository.getData();
+			Assertions.assertEquals(3, repository.getRefreshCount());
+		} finally {
+			repository.destroy();
+		}
+	}
+
+	@Test
+	void getDataIncremental() {
+		final var changeRepository = Mockito.mock(CacheSqlChangeRepository.class);
+		repository.setChangeRepository(changeRepository);
+		repository.setIncremental(true);
+		repository.getData();
+		Mockito.verify(changeRepository).deleteAllBefore(ArgumentMatchers.any());
+
+		// Journal the changes
+		repository.update(user);
+		Mockito.verify(changeRepository).save(ArgumentMatchers.any(CacheSqlChange.class));
+
+		// Changes made by another node
+		final var newUser = new UserOrg();
+		newUser.setId("u");
+		newUser.setFirstName("F2");
+		newUser.setCompany("company");
+		Mockito.when(userRepository.findByIdNoCache("u")).thenAnswer(i -> {
+			// Read of the current data by the refresh itself
+			Assertions.assertNotNull(repository.getData());
+			return newUser;
+		});
+		final var newGroup = new GroupOrg("dn2", "Group2", new HashSet<>(Set.of("u2")));
+		Mockito.when(groupRepository.findByIdNoCache("group2")).thenReturn(newGroup);
+		final var newCompanies = new HashMap<String, CompanyOrg>();
+		newCompanies.put("company2", new CompanyOrg("dnc2", "Company2"));
+		Mockito.when(companyRepository.findAllNoCache()).thenReturn(newCompanies);
+		final var change1 = new CacheSqlChange(CacheDataType.GROUP, "group2");
+		change1.setId(6);
+		final var change2 = new CacheSqlChange(CacheDataType.USER, "u");
+		change2.setId(7);
+		final var change3 = new CacheSqlChange(CacheDataType.GROUP, "group");
+		change3.setId(8);
+		final var change4 = new CacheSqlChange(CacheDataType.COMPANY, "company2");
+		change4.setId(9);
+		final var change5 = new CacheSqlChange(CacheDataType.USER, "u3");
+		change5.setId(10);
+		Mockito.when(changeRepository.findAllSince(ArgumentMatchers.any()))
+				.thenReturn(List.of(change1, change2, change3, change4, change5));
+
+		final var data = repository.refreshDataOnce();
+		Assertions.assertEquals(2, repository.getRefreshCount());
+		Assertions.assertEquals(0, repository.getCoalescedCount());
+		Mockito.verify(userRepository, Mockito.times(1)).findAllNoCache(groups);
+		final var newUsers = data.get(CacheDataType.USER);
+		final var newGroups = data.get(CacheDataType.GROUP);
+		Assertions.assertSame(newUser, newUsers.get("u"));
+		Assertions.assertEquals("F2", newUser.getFirstName());
+		Assertions.assertEquals(List.of(), newUser.getGroups());
+		Assertions.assertEquals(List.of("group2"), ((UserOrg) newUsers.get("u2")).getGroups());
+		Assertions.assertSame(newGroup, newGroups.get("group2"));
+		Assertions.assertFalse(newGroups.containsKey("group"));
+		Assertions.assertEquals(Set.of("company2"), data.get(CacheDataType.COMPANY).keySet());
+
+		// The previous data are not modified
+		Assertions.assertSame(user, users.get("u"));
+		Assertions.assertEquals(List.of(), users.get("u2").getGroups());
+		Assertions.assertSame(groupImpl2, groups.get("group2"));
+		Assertions.assertTrue(groups.containsKey("group"));
+
+		// The overlapping changes are not applied again, but a late change with a lower identifier is applied
+		final var change0 = new CacheSqlChange(CacheDataType.USER, "u2");
+		change0.setId(4);
+		Mockito.when(changeRepository.findAllSince(ArgumentMatchers.any()))
+				.thenReturn(List.of(change0, change1, change2, change3, change4, change5));
+		repository.refreshDataOnce();
+		Mockito.verify(changeRepository, Mockito.times(2)).findAllSince(ArgumentMatchers.any());
+		Mockito.verify(userRepository).findByIdNoCache("u");
+		Mockito.verify(userRepository).findByIdNoCache("u2");
+		Mockito.verify(companyRepository, Mockito.times(2)).findAllNoCache();
+
+		// No new change, the current data are kept
+		final var version = repository.getVersion();
+		final var current = repository.getData();
+		Assertions.assertSame(current, repository.refreshDataOnce());
+		Assertions.assertEquals(version, repository.getVersion());
+		Assertions.assertEquals(5, repository.getRefreshCount());
+
+		// The journal is purged at most once per interval
+		Mockito.verify(changeRepository).deleteAllBefore(ArgumentMatchers.any());
+	}
+
+	@Test
+	void getDataIncrementalTooManyChanges() {
+		final var changeRepository = Mockito.mock(CacheSqlChangeRepository.class);
+		repository.setChangeRepository(changeRepository);
+		repository.setIncremental(true);
+		repository.getData();
+		Mockito.when(changeRepository.findAllSince(ArgumentMatchers.any()))
+				.thenReturn(Collections.nCopies(1001, new CacheSqlChange(CacheDataType.USER, "u")));
+		repository.refreshDataOnce();
+		Mockito.verify(userRepository, Mockito.times(2)).findAllNoCache(groups);
+	}
+
 	@Test
 	void addUserToGroup() {
 		Assertions.assertEquals(1, user.getGroups().size());
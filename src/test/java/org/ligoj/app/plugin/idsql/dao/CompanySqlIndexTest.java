@@ -0,0 +1,78 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.CompanyOrg;
+
+/**
+ * Test class of {@link CompanySqlIndex}
+ */
+class CompanySqlIndexTest {
+
+	private Map<String, CompanyOrg> companies;
+
+	private CompanySqlIndex index;
+
+	@BeforeEach
+	void init() {
+		companies = new HashMap<>();
+		final var root = add("root", null);
+		final var a = add("a", root);
+		add("a1", a);
+		add("a2", a);
+		final var b = add("b", root);
+		add("b1", b);
+		add("other", null);
+		index = new CompanySqlIndex(companies);
+	}
+
+	private CompanyOrg add(final String id, final CompanyOrg parent) {
+		final var company = new CompanyOrg("ou=" + id, id);
+		final var tree = new ArrayList<CompanyOrg>();
+		if (parent != null) {
+			tree.addAll(parent.getCompanyTree());
+		}
+		tree.add(company);
+		company.setCompanyTree(tree);
+		companies.put(id, company);
+		return company;
+	}
+
+	@Test
+	void isIndexing() {
+		Assertions.assertTrue(index.isIndexing(companies));
+		Assertions.assertFalse(index.isIndexing(new HashMap<>(companies)));
+	}
+
+	@Test
+	void newMatcher() {
+		for (final var visible : List.of(Set.of("root"), Set.of("a"), Set.of("a1", "b"), Set.of("other"),
+				Set.of("b1", "any"), Set.<String>of())) {
+			final var matcher = index.newMatcher(visible);
+			for (final var company : companies.values()) {
+				Assertions.assertEquals(
+						company.getCompanyTree().stream().map(CompanyOrg::getId).anyMatch(visible::contains),
+						matcher.test(company.getId()), visible + " -> " + company.getId());
+			}
+		}
+	}
+
+	@Test
+	void newMatcherNotIndexed() {
+		// Company created after the index
+		add("a3", companies.get("a"));
+		Assertions.assertTrue(index.newMatcher(Set.of("a")).test("a3"));
+		Assertions.assertFalse(index.newMatcher(Set.of("b")).test("a3"));
+		Assertions.assertFalse(index.newMatcher(Set.of("a")).test("any"));
+	}
+}
@@ -5,6 +5,7 @@ package org.ligoj.app.plugin.idsql.dao;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -14,6 +15,7 @@ import java.util.Set;
 
 import jakarta.transaction.Transactional;
 
+import org.apache.commons.lang3.Strings;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -30,6 +32,7 @@ import org.ligoj.app.model.Parameter;
 import org.ligoj.app.model.ParameterValue;
 import org.ligoj.app.model.Project;
 import org.ligoj.app.model.Subscription;
+import org.ligoj.app.plugin.id.DnUtils;
 import org.ligoj.app.plugin.id.model.ContainerScope;
 import org.ligoj.app.plugin.idsql.model.UserSqlCredential;
 import org.ligoj.bootstrap.AbstractJpaTest;
@@ -97,6 +100,22 @@ class CompanySqlRepositoryTest extends AbstractJpaTest {
 		Assertions.assertEquals(9, repository.findAllNoCache().size());
 	}
 
+	@Test
+	void findAllNoCacheHierarchy() {
+		createInternal();
+		repository.create("OU=Sub-Other,ou=other,ou=external,ou=people,dc=sample,dc=com", "sub-other");
+		final Map<String, CompanyOrg> companies = repository.findAllNoCache();
+
+		// Same hierarchy than a full scan of the parent DNs
+		companies.values().forEach(c -> Assertions.assertEquals(
+				companies.values().stream().filter(p -> DnUtils.equalsOrParentOf(p.getDn(), c.getDn()))
+						.sorted(Comparator.comparing(CompanyOrg::getLdapName)).map(CompanyOrg::getId).toList(),
+				c.getCompanyTree().stream().map(CompanyOrg::getId).toList()));
+		final var tree = companies.get("sub-other").getCompanyTree();
+		Assertions.assertEquals("other", tree.get(tree.size() - 2).getId());
+		Assertions.assertEquals("sub-other", tree.getLast().getId());
+	}
+
 	@Test
 	void newSqlName() {
 		Assertions.assertThrows(TechnicalException.class, () -> repository.newLdapName("-invalid-"));
@@ -122,4 +141,28 @@ class CompanySqlRepositoryTest extends AbstractJpaTest {
 				Collections.emptyMap());
 		Assertions.assertEquals(0, all.getContent().size());
 	}
+
+	@Test
+	void findAllAfter() {
+		final var containers = new HashSet<>(repository.findAll().values());
+		final var expected = containers.stream().filter(c -> Strings.CI.contains(c.getName(), "I"))
+				.map(CompanyOrg::getId).sorted().toList();
+		final var actual = new ArrayList<String>();
+		var page = repository.findAllAfter(containers, "I", null, 2);
+		while (!page.isEmpty()) {
+			Assertions.assertTrue(page.size() <= 2);
+			page.stream().map(CompanyOrg::getId).forEach(actual::add);
+			page = repository.findAllAfter(containers, "I", page.getLast().getId(), 2);
+		}
+		Assertions.assertEquals(expected, actual);
+	}
+
+	@Test
+	void count() {
+		final var containers = new HashSet<>(repository.findAll().values());
+		Assertions.assertEquals(containers.size(), repository.count(containers, null));
+		Assertions.assertEquals(containers.stream().filter(c -> Strings.CI.contains(c.getName(), "I")).count(),
+				repository.count(containers, "I"));
+		Assertions.assertEquals(0, repository.count(containers, "xyz"));
+	}
 }
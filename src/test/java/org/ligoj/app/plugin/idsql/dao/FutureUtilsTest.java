@@ -0,0 +1,36 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class of {@link FutureUtils}
+ */
+class FutureUtilsTest {
+
+	@Test
+	void unchecked() {
+		final var runtime = new IllegalArgumentException();
+		Assertions.assertSame(runtime, FutureUtils.unchecked(runtime));
+		final var checked = new IOException();
+		Assertions.assertSame(checked, FutureUtils.unchecked(checked).getCause());
+		final var error = new AssertionError();
+		Assertions.assertSame(error, Assertions.assertThrows(AssertionError.class, () -> FutureUtils.unchecked(error)));
+	}
+
+	@Test
+	void join() {
+		Assertions.assertEquals(1, FutureUtils.join(CompletableFuture.completedFuture(1)));
+		final var failure = new IllegalArgumentException();
+		Assertions.assertSame(failure, Assertions.assertThrows(IllegalArgumentException.class,
+				() -> FutureUtils.join(CompletableFuture.failedFuture(failure))));
+		Assertions.assertThrows(IllegalStateException.class,
+				() -> FutureUtils.join(CompletableFuture.failedFuture(new IOException())));
+	}
+}
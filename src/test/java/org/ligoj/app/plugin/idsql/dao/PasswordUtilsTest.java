@@ -0,0 +1,62 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.plugin.idsql.resource.SqlPluginResource;
+import org.ligoj.bootstrap.core.resource.TechnicalException;
+
+/**
+ * Test class of {@link PasswordUtils}
+ */
+class PasswordUtilsTest {
+
+	private static final byte[] SALT = "salt".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	void encode() throws Exception {
+		final var factory = SecretKeyFactory.getInstance(SqlPluginResource.DEFAULT_ALG);
+		final var expected = Base64.getEncoder().encodeToString(
+				factory.generateSecret(new PBEKeySpec("secret".toCharArray(), SALT, 10, 256)).getEncoded());
+		Assertions.assertEquals(expected,
+				PasswordUtils.encode(SqlPluginResource.DEFAULT_ALG, "secret".toCharArray(), SALT, 10, 256));
+
+		// Same factory reused by this thread
+		Assertions.assertEquals(expected,
+				PasswordUtils.encode(SqlPluginResource.DEFAULT_ALG, "secret".toCharArray(), SALT, 10, 256));
+	}
+
+	@Test
+	void matches() {
+		final var stored = PasswordUtils.encode(SqlPluginResource.DEFAULT_ALG, "secret".toCharArray(), SALT, 10, 256);
+		Assertions.assertTrue(PasswordUtils.matches(SqlPluginResource.DEFAULT_ALG, "secret".toCharArray(), SALT, 10,
+				256, stored));
+		Assertions.assertFalse(PasswordUtils.matches(SqlPluginResource.DEFAULT_ALG, "Secret".toCharArray(), SALT, 10,
+				256, stored));
+		Assertions.assertFalse(PasswordUtils.matches(SqlPluginResource.DEFAULT_ALG, "secret".toCharArray(), SALT, 10,
+				256, "0".repeat(16)));
+		Assertions.assertFalse(PasswordUtils.matches(SqlPluginResource.DEFAULT_ALG, "secret".toCharArray(), SALT, 10,
+				256, "not-base64!"));
+	}
+
+	@Test
+	void hashWipe() {
+		final var password = "secret".toCharArray();
+		PasswordUtils.hash(SqlPluginResource.DEFAULT_ALG, password, SALT, 10, 256);
+		Assertions.assertArrayEquals(new char[6], password);
+	}
+
+	@Test
+	void hashInvalidAlgo() {
+		Assertions.assertThrows(TechnicalException.class,
+				() -> PasswordUtils.hash("invalid", "secret".toCharArray(), SALT, 10, 256));
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.plugin.idsql.dao.UserSqlCredentialCache.Credential;
+
+/**
+ * Test class of {@link UserSqlCredentialCache}
+ */
+class UserSqlCredentialCacheTest {
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	private final Function<String, Credential> loader = login -> {
+		loads.incrementAndGet();
+		return login.startsWith("any") ? null : new Credential("salt", login, null, null, null, null, null);
+	};
+
+	@Test
+	void get() {
+		final var cache = new UserSqlCredentialCache(10, Duration.ofSeconds(30));
+		Assertions.assertEquals("user", cache.get("user", loader).value());
+		Assertions.assertEquals("user", cache.get("user", loader).value());
+		Assertions.assertEquals(1, loads.get());
+
+		// Unknown login is cached too
+		Assertions.assertNull(cache.get("any", loader));
+		Assertions.assertNull(cache.get("any", loader));
+		Assertions.assertEquals(2, loads.get());
+	}
+
+	@Test
+	void invalidate() {
+		final var cache = new UserSqlCredentialCache(10, Duration.ofSeconds(30));
+		cache.get("user", loader);
+		cache.get("other", loader);
+		cache.invalidate("user");
+		Assertions.assertEquals(1, cache.size());
+		cache.get("user", loader);
+		Assertions.assertEquals(3, loads.get());
+
+		cache.clear();
+		Assertions.assertEquals(0, cache.size());
+	}
+
+	@Test
+	void getInvalidatedWhileLoading() {
+		final var cache = new UserSqlCredentialCache(10, Duration.ofSeconds(30));
+
+		// The loaded value may be outdated, so it is returned but not cached
+		Assertions.assertEquals("user", cache.get("user", l -> {
+			cache.invalidate(l);
+			return loader.apply(l);
+		}).value());
+		Assertions.assertEquals(0, cache.size());
+	}
+
+	@Test
+	void getEvict() {
+		final var cache = new UserSqlCredentialCache(2, Duration.ofSeconds(30));
+		cache.get("user1", loader);
+		cache.get("user2", loader);
+		cache.get("user1", loader);
+		cache.get("user3", loader);
+		Assertions.assertEquals(2, cache.size());
+
+		// "user2" was the least recently used
+		cache.get("user1", loader);
+		Assertions.assertEquals(3, loads.get());
+		cache.get("user2", loader);
+		Assertions.assertEquals(4, loads.get());
+	}
+
+	@Test
+	void getExpired() {
+		final var now = new AtomicLong();
+		final var cache = new UserSqlCredentialCache(10, Duration.ofSeconds(30), now::get);
+		cache.get("user", loader);
+		cache.get("any", loader);
+		now.set(Duration.ofSeconds(29).toNanos());
+		cache.get("user", loader);
+		cache.get("any", loader);
+		Assertions.assertEquals(2, loads.get());
+
+		// Changed by another node, reloaded after the time to live
+		now.set(Duration.ofSeconds(30).toNanos());
+		Assertions.assertEquals("user", cache.get("user", loader).value());
+		Assertions.assertNull(cache.get("any", loader));
+		Assertions.assertEquals(4, loads.get());
+		Assertions.assertEquals(2, cache.size());
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Test class of {@link UserSqlIndex}
+ */
+class UserSqlIndexTest {
+
+	private Map<String, UserOrg> users;
+
+	private UserSqlIndex index;
+
+	@BeforeEach
+	void init() {
+		users = new HashMap<>();
+		add("u3", "Alice");
+		add("u1", "Charlie");
+		add("u2", "Bob");
+		add("u4", "Bob");
+		index = new UserSqlIndex(users, UserSqlRepository.COMPARATORS);
+	}
+
+	private UserOrg add(final String id, final String firstName) {
+		final var user = new UserOrg();
+		user.setId(id);
+		user.setFirstName(firstName);
+		user.setLastName("Doe");
+		user.setCompany("company");
+		user.setMails(List.of(id + "@sample.com"));
+		users.put(id, user);
+		return user;
+	}
+
+	private List<String> getSorted(final String property) {
+		final var view = index.getView(property);
+		Assertions.assertEquals(Arrays.stream(view.users()).map(u -> index.getOrdinal(u.getId())).toList(),
+				Arrays.stream(view.ordinals()).boxed().toList());
+		return Arrays.stream(view.users()).map(UserOrg::getId).toList();
+	}
+
+	private Set<String> find(final Collection<GroupOrg> groups, final Predicate<String> companies,
+			final String criteria) {
+		return index.newCandidates(groups, companies, criteria).stream().mapToObj(index::getUser).map(UserOrg::getId)
+				.collect(Collectors.toSet());
+	}
+
+	private Set<String> find(final String criteria) {
+		return find(null, c -> true, criteria);
+	}
+
+	@Test
+	void getSorted() {
+		Assertions.assertTrue(index.isIndexing(users));
+		Assertions.assertFalse(index.isIndexing(new HashMap<>(users)));
+		Assertions.assertEquals(List.of("u1", "u2", "u3", "u4"), getSorted("id"));
+		Assertions.assertEquals(List.of("u3", "u2", "u4", "u1"), getSorted("firstName"));
+		Assertions.assertNull(index.getView("any"));
+	}
+
+	@Test
+	void refreshUpdate() {
+		// Updated in place, as the cached entries are
+		users.get("u3").setFirstName("Dave");
+		index.refresh("u3");
+		Assertions.assertEquals(List.of("u2", "u4", "u1", "u3"), getSorted("firstName"));
+		Assertions.assertEquals(List.of("u1", "u2", "u3", "u4"), getSorted("id"));
+	}
+
+	@Test
+	void refreshCreate() {
+		add("u0", "Bob");
+		index.refresh("u0");
+		Assertions.assertEquals(List.of("u3", "u0", "u2", "u4", "u1"), getSorted("firstName"));
+		Assertions.assertEquals(List.of("u0", "u1", "u2", "u3", "u4"), getSorted("id"));
+	}
+
+	@Test
+	void refreshDelete() {
+		users.remove("u2");
+		index.refresh("u2");
+		Assertions.assertEquals(List.of("u3", "u4", "u1"), getSorted("firstName"));
+		Assertions.assertEquals(List.of("u1", "u3", "u4"), getSorted("id"));
+
+		// Unknown user
+		index.refresh("any");
+		Assertions.assertEquals(List.of("u1", "u3", "u4"), getSorted("id"));
+	}
+
+	@Test
+	void refreshBatch() {
+		users.get("u3").setFirstName("Dave");
+		add("u0", "Bob");
+		users.remove("u2");
+		index.refresh(List.of("u3", "u0", "u2", "any"));
+		Assertions.assertEquals(List.of("u0", "u4", "u1", "u3"), getSorted("firstName"));
+		Assertions.assertEquals(List.of("u0", "u1", "u3", "u4"), getSorted("id"));
+		Assertions.assertEquals(Set.of("u0", "u4"), find("bob"));
+	}
+
+	@Test
+	void find() {
+		Assertions.assertEquals(Set.of("u1", "u2", "u3", "u4"), find(null));
+		Assertions.assertEquals(Set.of("u1", "u2", "u3", "u4"), find("al"));
+		Assertions.assertEquals(Set.of("u3"), find("ALI"));
+		Assertions.assertEquals(Set.of("u3"), find("alice"));
+		Assertions.assertEquals(Set.of("u2", "u4"), find("bOb"));
+		Assertions.assertEquals(Set.of("u1", "u2", "u3", "u4"), find("Doe"));
+		Assertions.assertEquals(Set.of("u4"), find("u4@sample"));
+		Assertions.assertEquals(Set.of(), find("xyz"));
+
+		// Superset of the actual matches, the trigrams are found in different fields
+		add("abc", "Bcd");
+		index.refresh("abc");
+		Assertions.assertEquals(Set.of("abc"), find("abcd"));
+	}
+
+	@Test
+	void findGroupsAndCompanies() {
+		final var group1 = new GroupOrg("cn=g1", "g1", new HashSet<>(Set.of("u1", "u2")));
+		final var group2 = new GroupOrg("cn=g2", "g2", new HashSet<>(Set.of("u2", "u3", "any")));
+		Assertions.assertEquals(Set.of("u1", "u2", "u3"), find(List.of(group1, group2), c -> true, null));
+		Assertions.assertEquals(Set.of("u2"), find(List.of(group1, group2), c -> true, "bob"));
+		Assertions.assertEquals(Set.of(), find(List.of(group1), "other"::equals, null));
+
+		// Company change
+		users.get("u1").setCompany("other");
+		index.refresh("u1");
+		Assertions.assertEquals(Set.of("u1"), find(List.of(group1), "other"::equals, null));
+
+		// Membership change
+		group1.getMembers().add("u4");
+		Assertions.assertEquals(Set.of("u1", "u2"), find(List.of(group1), c -> true, null));
+		index.invalidateGroup("g1");
+		Assertions.assertEquals(Set.of("u1", "u2", "u4"), find(List.of(group1), c -> true, null));
+
+		// Deleted user
+		users.remove("u2");
+		index.refresh("u2");
+		Assertions.assertEquals(Set.of("u1", "u4"), find(List.of(group1), c -> true, null));
+		Assertions.assertNull(index.getOrdinal("u2"));
+	}
+
+	@Test
+	void findRefresh() {
+		users.get("u3").setFirstName("Dave");
+		index.refresh("u3");
+		Assertions.assertEquals(Set.of(), find("ali"));
+		Assertions.assertEquals(Set.of("u3"), find("dav"));
+
+		users.remove("u2");
+		index.refresh("u2");
+		Assertions.assertEquals(Set.of("u4"), find("bob"));
+	}
+
+	@Test
+	void findAllBy() {
+		Assertions.assertEquals(List.of("u2", "u4"), findAllBy("firstName", "Bob"));
+		Assertions.assertEquals(List.of("u2", "u4"), findAllBy("firstName", "bOB"));
+		Assertions.assertEquals(List.of(), findAllBy("firstName", null));
+		Assertions.assertEquals(4, findAllBy("lastName", "Doe").size());
+		Assertions.assertEquals(4, findAllBy("company", "company").size());
+		Assertions.assertEquals(List.of("u3"), findAllBy("id", "u3"));
+		Assertions.assertEquals(List.of(), findAllBy("id", "any"));
+
+		// Any of the mails
+		users.get("u1").setMails(List.of("u1@sample.com", "charlie@sample.com"));
+		index.refresh("u1");
+		Assertions.assertEquals(List.of("u1"), findAllBy("mails", "charlie@sample.com"));
+		Assertions.assertEquals(List.of("u1"), findAllBy("mails", "u1@sample.com"));
+		Assertions.assertEquals(List.of("u1"), findAllBy("mails", "Charlie@Sample.COM"));
+		Assertions.assertEquals(List.of("u3"), findAllBy("id", "U3"));
+		Assertions.assertEquals(4, findAllBy("company", "Company").size());
+
+		// Updated and deleted users
+		users.get("u2").setFirstName("Robert");
+		index.refresh("u2");
+		users.remove("u4");
+		index.refresh("u4");
+		Assertions.assertEquals(List.of(), findAllBy("firstName", "Bob"));
+		Assertions.assertEquals(List.of("u2"), findAllBy("firstName", "Robert"));
+		Assertions.assertEquals(List.of(), findAllBy("mails", "u4@sample.com"));
+	}
+
+	private List<String> findAllBy(final String attribute, final String value) {
+		return index.findAllBy(attribute, value).stream().map(UserOrg::getId).sorted().toList();
+	}
+
+	@Test
+	void newMatcher() {
+		final var user = add("u5", "Kıt");
+		index.refresh("u5");
+		final int ordinal = index.getOrdinal("u5");
+		for (final var criteria : List.of("KIT", "kit", "u5@SAMPLE", "doe", "ali", "u5", "", "t\0d", "xyz")) {
+			Assertions.assertEquals(UserSqlRepository.matchPattern(user, criteria),
+					index.newMatcher(criteria).test(ordinal), criteria);
+		}
+		Assertions.assertTrue(index.newMatcher("KIT").test(ordinal));
+		Assertions.assertFalse(index.newMatcher("t\0d").test(ordinal));
+		Assertions.assertTrue(index.newMatcher(null).test(ordinal));
+
+		// Deleted user
+		users.remove("u5");
+		index.refresh("u5");
+		Assertions.assertFalse(index.newMatcher("KIT").test(ordinal));
+		Assertions.assertFalse(index.newMatcher("t\0d").test(ordinal));
+		Assertions.assertFalse(index.newMatcher("KIT").test(1000));
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class of {@link UserSqlPosting}
+ */
+class UserSqlPostingTest {
+
+	@Test
+	void addSparse() {
+		final var posting = new UserSqlPosting();
+		Assertions.assertTrue(posting.isEmpty());
+		posting.add(5, 100000);
+		posting.add(1, 100000);
+		posting.add(99999, 100000);
+		posting.add(5, 100000);
+		Assertions.assertFalse(posting.isDense());
+		Assertions.assertEquals(3, posting.size());
+		Assertions.assertArrayEquals(new int[]{1, 5, 99999}, posting.toArray());
+		Assertions.assertTrue(posting.contains(5));
+		Assertions.assertFalse(posting.contains(6));
+
+		posting.remove(5, 100000);
+		posting.remove(6, 100000);
+		Assertions.assertArrayEquals(new int[]{1, 99999}, posting.stream().toArray());
+		posting.remove(1, 100000);
+		posting.remove(99999, 100000);
+		Assertions.assertTrue(posting.isEmpty());
+		posting.add(3, 100000);
+		Assertions.assertArrayEquals(new int[]{3}, posting.toArray());
+	}
+
+	@Test
+	void addDense() {
+		final var posting = new UserSqlPosting();
+		IntStream.range(0, 63).forEach(o -> posting.add(o * 2, 1000));
+		Assertions.assertFalse(posting.isDense());
+
+		// More than one user out of 32
+		posting.add(1, 1000);
+		Assertions.assertTrue(posting.isDense());
+		Assertions.assertEquals(64, posting.size());
+		Assertions.assertTrue(posting.contains(1));
+		posting.add(1, 1000);
+		Assertions.assertEquals(64, posting.size());
+
+		// Back to a sorted array far below the density
+		IntStream.range(0, 50).forEach(o -> posting.remove(o * 2, 1000));
+		posting.remove(0, 1000);
+		Assertions.assertFalse(posting.isDense());
+		Assertions.assertEquals(14, posting.size());
+		Assertions.assertEquals(1, posting.toArray()[0]);
+		Assertions.assertTrue(posting.contains(124));
+	}
+
+	@Test
+	void newSorted() {
+		Assertions.assertFalse(new UserSqlPosting(new int[]{1, 2, 3}, 10).isDense());
+		Assertions.assertTrue(new UserSqlPosting(IntStream.range(0, 100).toArray(), 1000).isDense());
+		Assertions.assertFalse(new UserSqlPosting(IntStream.range(0, 100).toArray(), 100000).isDense());
+		final var empty = new UserSqlPosting(new int[0], 10);
+		empty.add(2, 10);
+		Assertions.assertArrayEquals(new int[]{2}, empty.toArray());
+	}
+
+	@Test
+	void retain() {
+		final var sparse = new UserSqlPosting(new int[]{2, 4, 6, 8}, 100000);
+		Assertions.assertArrayEquals(new int[]{4, 8}, sparse.retain(new int[]{1, 4, 5, 8, 9}));
+		Assertions.assertArrayEquals(new int[0], sparse.retain(new int[]{1, 3}));
+		final var dense = new UserSqlPosting(IntStream.range(0, 100).toArray(), 1000);
+		Assertions.assertArrayEquals(new int[]{4, 99}, dense.retain(new int[]{4, 99, 100, 500}));
+	}
+
+	@Test
+	void or() {
+		final var result = new BitSet();
+		new UserSqlPosting(new int[]{2, 4}, 100000).or(result);
+		new UserSqlPosting(IntStream.range(10, 110).toArray(), 1000).or(result);
+		Assertions.assertEquals(102, result.cardinality());
+		Assertions.assertTrue(result.get(4));
+		Assertions.assertTrue(result.get(109));
+	}
+}
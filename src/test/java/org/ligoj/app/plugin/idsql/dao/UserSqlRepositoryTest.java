@@ -4,22 +4,29 @@
 package org.ligoj.app.plugin.idsql.dao;
 
 import jakarta.transaction.Transactional;
+import org.apache.commons.lang3.Strings;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.hibernate.SessionFactory;
 import org.ligoj.app.iam.CompanyOrg;
+import org.ligoj.app.iam.GroupOrg;
 import org.ligoj.app.iam.UserOrg;
 import org.ligoj.app.iam.model.*;
 import org.ligoj.app.model.*;
 import org.ligoj.app.plugin.id.model.ContainerScope;
 import org.ligoj.app.plugin.idsql.model.UserSqlCredential;
+import org.ligoj.app.plugin.idsql.resource.SqlPluginResource;
 import org.ligoj.bootstrap.AbstractJpaTest;
 import org.ligoj.bootstrap.MatcherUtil;
 import org.ligoj.bootstrap.core.resource.TechnicalException;
 import org.ligoj.bootstrap.core.validation.ValidationJsonException;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
 import org.springframework.test.annotation.Rollback;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
@@ -27,6 +34,15 @@ import org.springframework.test.context.junit.jupiter.SpringExtension;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Test class of {@link UserSqlRepository}
@@ -42,6 +58,12 @@ class UserSqlRepositoryTest extends AbstractJpaTest {
 	@Autowired
 	private UserSqlCredentialRepository credentialRepository;
 
+	@Autowired
+	private CacheSqlRepository cacheRepository;
+
+	@Autowired
+	private CacheSqlDao cacheSqlDao;
+
 	@BeforeEach
 	void init2() throws IOException {
 		persistEntities("csv",
@@ -52,6 +74,15 @@ class UserSqlRepositoryTest extends AbstractJpaTest {
 		repository = new UserSqlRepository();
 		applicationContext.getAutowireCapableBeanFactory().autowireBean(repository);
 		cacheManager.getCache("id-sql-data").clear();
+
+		// The background rehashes and their stores run in the test transaction
+		repository.setAuthenticationExecutor(new AuthenticationExecutor() {
+			@Override
+			public <T> boolean submit(final Supplier<T> task, final Consumer<T> store) {
+				store.accept(task.get());
+				return true;
+			}
+		});
 	}
 
 	@Test
@@ -83,11 +114,335 @@ class UserSqlRepositoryTest extends AbstractJpaTest {
 		Assertions.assertNull(repository.toUser("user1").getFirstName());
 	}
 
+	@Test
+	void findAllNoCachePrefetch() {
+		final var groupRepository = repository.getGroupRepository();
+		final var groups = groupRepository.findAllNoCache();
+		final var users = repository.findAllNoCache(groups);
+
+		// Read by the given executor, then consumed once
+		groupRepository.prefetch(Runnable::run);
+		repository.prefetch(Runnable::run);
+		final var prefetchedGroups = groupRepository.findAllNoCache();
+		Assertions.assertEquals(groups.keySet(), prefetchedGroups.keySet());
+		groups.forEach((id, g) -> Assertions.assertEquals(g.getMembers(), prefetchedGroups.get(id).getMembers()));
+		final var prefetchedUsers = repository.findAllNoCache(prefetchedGroups);
+		Assertions.assertEquals(users.keySet(), prefetchedUsers.keySet());
+		users.forEach((id, u) -> Assertions.assertEquals(new HashSet<>(u.getGroups()),
+				new HashSet<>(prefetchedUsers.get(id).getGroups())));
+
+		// Dropped read
+		repository.prefetch(Runnable::run);
+		repository.prefetch(null);
+		Assertions.assertEquals(users.keySet(), repository.findAllNoCache(groups).keySet());
+	}
+
+	@Test
+	void findAllTopK() {
+		final var companies = repository.getCompanyRepository().findAll().keySet();
+		final var groups = repository.getGroupRepository().findAll().values();
+		for (final var sort : List.of(Sort.by(Direction.DESC, "firstName"), Sort.by("mail"), Sort.by("company"),
+				Sort.unsorted())) {
+			for (final var required : Arrays.asList(null, groups)) {
+				// Bounded selection, before the whole result is cached
+				final var page = repository.findAll(required, companies, null, PageRequest.of(1, 3, sort));
+
+				// Whole sorted result
+				final var all = repository.findAll(required, companies, null, PageRequest.of(0, 5000, sort));
+				Assertions.assertEquals(all.getTotalElements(), page.getTotalElements());
+				Assertions.assertEquals(all.getContent().subList(3, 6).stream().map(UserOrg::getId).toList(),
+						page.getContent().stream().map(UserOrg::getId).toList());
+			}
+		}
+
+		// Page beyond the result
+		final var page = repository.findAll(null, companies, "fdoe2", PageRequest.of(3, 10));
+		Assertions.assertEquals(1, page.getTotalElements());
+		Assertions.assertTrue(page.getContent().isEmpty());
+	}
+
+	@Test
+	void findAllCached() {
+		final var companies = repository.getCompanyRepository().findAll().keySet();
+		final var cache = cacheRepository.getResultCache();
+		final var hits = cache.getHits();
+		final var all = repository.findAll(null, companies, null, PageRequest.of(0, 5000, Sort.by("lastName")));
+
+		// Page flips are served by the cache
+		final var page = repository.findAll(null, companies, null, PageRequest.of(1, 2, Sort.by("lastName")));
+		Assertions.assertEquals(hits + 1, cache.getHits());
+		Assertions.assertEquals(all.getTotalElements(), page.getTotalElements());
+		Assertions.assertEquals(all.getContent().subList(2, 4), page.getContent());
+
+		// Any change invalidates the cached results
+		final var user = all.getContent().getFirst();
+		user.setLastName("Zzz");
+		repository.updateUser(user);
+		final var updated = repository.findAll(null, companies, null, PageRequest.of(0, 5000, Sort.by("lastName")));
+		Assertions.assertEquals(hits + 1, cache.getHits());
+		Assertions.assertEquals(user.getId(), updated.getContent().getLast().getId());
+	}
+
+	@Test
+	void findAllCriteria() {
+		final var companies = repository.getCompanyRepository().findAll().keySet();
+		final var users = repository.findAll().values();
+		for (final var criteria : List.of("doe", "DOE", "fdo", "e2", "sample.c", "ohn d", "xyz", "jdoe5")) {
+			// Brute force
+			final var expected = users.stream()
+					.filter(u -> Strings.CI.contains(u.getFirstName(), criteria)
+							|| Strings.CI.contains(u.getLastName(), criteria) || Strings.CI.contains(u.getId(), criteria)
+							|| !u.getMails().isEmpty() && Strings.CI.contains(u.getMails().getFirst(), criteria))
+					.map(UserOrg::getId).sorted().toList();
+			Assertions.assertEquals(expected, repository.findAll(null, companies, criteria, PageRequest.of(0, 5000))
+					.getContent().stream().map(UserOrg::getId).sorted().toList());
+			Assertions.assertEquals(expected.size(),
+					repository.findAll(null, companies, criteria, PageRequest.of(0, 2)).getTotalElements());
+		}
+	}
+
+	@Test
+	void findAllPushDown() {
+		final var companies = repository.getCompanyRepository().findAll().keySet();
+		final var groups = repository.getGroupRepository().findAll().values();
+		final var company = Set.of(companies.iterator().next());
+		for (final var criteria : Arrays.asList(null, "doe", "DOE", "xyz")) {
+			for (final var required : Arrays.asList(null, groups, List.<GroupOrg>of())) {
+				for (final var visible : List.of(companies, company)) {
+					final var expected = repository.findAll(required, visible, criteria,
+							PageRequest.of(0, 5000, Sort.by("id")));
+					repository.setPushDown(true);
+					final var all = repository.findAll(required, visible, criteria,
+							PageRequest.of(0, 5000, Sort.by("id")));
+					final var page = repository.findAll(required, visible, criteria,
+							PageRequest.of(1, 2, Sort.by(Direction.DESC, "id")));
+					final var count = repository.count(required, visible, criteria);
+					repository.setPushDown(false);
+
+					Assertions.assertEquals(expected.getTotalElements(), all.getTotalElements());
+					Assertions.assertEquals(expected.getTotalElements(), page.getTotalElements());
+					Assertions.assertEquals(expected.getTotalElements(), count);
+					final var ids = expected.getContent().stream().map(UserOrg::getId).toList();
+					Assertions.assertEquals(ids, all.getContent().stream().map(UserOrg::getId).toList());
+					Assertions.assertEquals(ids.reversed().stream().skip(2).limit(2).toList(),
+							page.getContent().stream().map(UserOrg::getId).toList());
+				}
+			}
+		}
+	}
+
+	@Test
+	void findAllPushDownState() {
+		final var companies = repository.getCompanyRepository().findAll().keySet();
+		final var expected = repository.findById("fdoe2");
+		repository.setPushDown(true);
+		final var user = repository.findAll(null, companies, "fdoe2", PageRequest.of(0, 10)).getContent().getFirst();
+		Assertions.assertEquals("fdoe2", user.getId());
+		Assertions.assertNotSame(expected, user);
+		Assertions.assertEquals(expected.getFirstName(), user.getFirstName());
+		Assertions.assertEquals(expected.getCompany(), user.getCompany());
+		Assertions.assertEquals(expected.getMails(), user.getMails());
+		Assertions.assertEquals(expected.getLocked(), user.getLocked());
+		Assertions.assertEquals(Set.copyOf(expected.getGroups()), Set.copyOf(user.getGroups()));
+	}
+
+	@Test
+	void findAllBy() {
+		final var user = repository.findAll().values().stream().filter(u -> !u.getMails().isEmpty()).findFirst()
+				.orElseThrow();
+		final var mail = user.getMails().getFirst();
+		Assertions.assertTrue(findAllBy("mails", mail).contains(user.getId()));
+		Assertions.assertTrue(findAllBy("mails", mail.toUpperCase(Locale.ENGLISH)).contains(user.getId()));
+		Assertions.assertTrue(findAllBy("company", user.getCompany()).contains(user.getId()));
+
+		// The returned users are copies
+		final var found = repository.findAllBy("id", user.getId()).getFirst();
+		Assertions.assertNotSame(user, found);
+		found.getGroups().add("any");
+		Assertions.assertFalse(user.getGroups().contains("any"));
+
+		// Consistent with the updates
+		user.setMails(List.of("findallby.new@sample.com"));
+		user.setLastName("FindAllBy");
+		repository.updateUser(user);
+		Assertions.assertFalse(findAllBy("mails", mail).contains(user.getId()));
+		Assertions.assertEquals(List.of(user.getId()), findAllBy("mails", "findallby.new@sample.com"));
+		Assertions.assertEquals(List.of(user.getId()), findAllBy("lastName", "findallby"));
+	}
+
+	private List<String> findAllBy(final String attribute, final String value) {
+		return repository.findAllBy(attribute, value).stream().map(UserOrg::getId).toList();
+	}
+
+	@Test
+	void count() {
+		final var companies = repository.getCompanyRepository().findAll().keySet();
+		final var groups = repository.getGroupRepository().findAll().values();
+		for (final var criteria : Arrays.asList(null, "", "doe", "DOE", "fdo", "ohn d", "xyz")) {
+			for (final var required : Arrays.asList(null, groups, List.of(groups.iterator().next()))) {
+				Assertions.assertEquals(
+						repository.findAll(required, companies, criteria, PageRequest.of(0, 1)).getTotalElements(),
+						repository.count(required, companies, criteria), criteria);
+			}
+		}
+		Assertions.assertEquals(0, repository.count(null, Set.of(), null));
+	}
+
+	@Test
+	void findAllAfter() {
+		final var companies = repository.getCompanyRepository().findAll().keySet();
+		final var groups = repository.getGroupRepository().findAll().values();
+		for (final var order : List.of(Sort.Order.asc("id"), Sort.Order.desc("firstName"), Sort.Order.asc("mail"),
+				Sort.Order.desc("company"), Sort.Order.asc("lastName"))) {
+			for (final var required : Arrays.asList(null, groups)) {
+				final var expected = repository
+						.findAll(required, companies, "o", PageRequest.of(0, 5000, Sort.by(order))).getContent()
+						.stream().map(UserOrg::getId).toList();
+
+				// Walk all the pages from the cursors
+				final var actual = new ArrayList<String>();
+				var page = repository.findAllAfter(required, companies, "o", order, null, null, 3);
+				while (!page.isEmpty()) {
+					page.stream().map(UserOrg::getId).forEach(actual::add);
+					final var last = page.getLast();
+					final var key = switch (order.getProperty()) {
+					case "firstName" -> last.getFirstName();
+					case "lastName" -> last.getLastName();
+					case "company" -> last.getCompany();
+					case "mail" -> last.getMails().isEmpty() ? null : last.getMails().getFirst();
+					default -> null;
+					};
+					page = repository.findAllAfter(required, companies, "o", order, key, last.getId(), 3);
+				}
+				Assertions.assertEquals(expected, actual, order.toString());
+			}
+		}
+	}
+
+	@Test
+	void findAllAfterDeleted() {
+		final var companies = repository.getCompanyRepository().findAll().keySet();
+		final var order = Sort.Order.asc("id");
+		final var first = repository.findAllAfter(null, companies, null, order, null, null, 2);
+		final var next = repository.findAllAfter(null, companies, null, order, null, first.getLast().getId(), 2);
+
+		// The cursor still works when the last returned user has been deleted
+		repository.delete(first.getLast());
+		Assertions.assertEquals(next,
+				repository.findAllAfter(null, companies, null, order, null, first.getLast().getId(), 2));
+	}
+
+	@Test
+	void findAllAfterPushDown() {
+		final var companies = repository.getCompanyRepository().findAll().keySet();
+		final var groups = repository.getGroupRepository().findAll().values();
+		repository.setPushDown(true);
+		for (final var order : List.of(Sort.Order.asc("id"), Sort.Order.desc("firstName"), Sort.Order.asc("mail"),
+				Sort.Order.desc("company"), Sort.Order.asc("lastName"), Sort.Order.desc("lastName"))) {
+			for (final var required : Arrays.asList(null, groups)) {
+				final var expected = repository
+						.findAll(required, companies, "o", PageRequest.of(0, 5000, Sort.by(order))).getContent()
+						.stream().map(UserOrg::getId).toList();
+
+				// Walk all the pages from the cursors, the keyset follows the order of the database
+				final var actual = new ArrayList<String>();
+				var page = repository.findAllAfter(required, companies, "o", order, null, null, 3);
+				while (!page.isEmpty()) {
+					page.stream().map(UserOrg::getId).forEach(actual::add);
+					final var last = page.getLast();
+					final var key = switch (order.getProperty()) {
+					case "firstName" -> last.getFirstName();
+					case "lastName" -> last.getLastName();
+					case "company" -> last.getCompany();
+					case "mail" -> last.getMails().isEmpty() ? null : last.getMails().getFirst();
+					default -> null;
+					};
+					page = repository.findAllAfter(required, companies, "o", order, key, last.getId(), 3);
+				}
+				Assertions.assertEquals(expected, actual, order.toString());
+			}
+		}
+
+		// Same users than the in memory index
+		final var ids = repository.findAllAfter(null, companies, null, Sort.Order.asc("id"), null, null, 5000)
+				.stream().map(UserOrg::getId).toList();
+		repository.setPushDown(false);
+		Assertions.assertEquals(repository.findAllAfter(null, companies, null, Sort.Order.asc("id"), null, null, 5000)
+				.stream().map(UserOrg::getId).toList(), ids);
+	}
+
+	@Test
+	void findAllByPushDown() {
+		final var user = repository.findAll().values().stream().filter(u -> !u.getMails().isEmpty()).findFirst()
+				.orElseThrow();
+		repository.setPushDown(true);
+		Assertions.assertEquals(List.of(user.getId()), findAllBy("id", user.getId()));
+		Assertions.assertTrue(findAllBy("company", user.getCompany()).contains(user.getId()));
+	}
+
+	@Test
+	void findUsersHiddenCompanies() {
+		final var all = repository.getCompanyRepository().findAll().keySet();
+		final var index = cacheRepository.getCompanyIndex();
+		final var visible = all.stream().map(c -> index.newMatcher(Set.of(c)))
+				.min(Comparator.comparingLong(m -> all.stream().filter(m).count())).orElseThrow();
+		final var bound = CacheSqlDao.UserFilter.of(null, all, visible, null);
+		final var hidden = CacheSqlDao.UserFilter.of(null, all, visible.negate(), null);
+		Assertions.assertNull(bound.visible());
+		Assertions.assertFalse(bound.hidden());
+		Assertions.assertTrue(hidden.hidden());
+		Assertions.assertEquals(bound.companies(), hidden.companies());
+		Assertions.assertNull(CacheSqlDao.UserFilter.of(null, all, c -> true, null).companies());
+		Assertions.assertTrue(CacheSqlDao.UserFilter.of(null, all, c -> false, null).isEmpty());
+
+		// Too many companies to be bound, the rows of the hidden companies are skipped
+		final var streamed = new CacheSqlDao.UserFilter(null, null, false, visible, null);
+		Assertions.assertEquals(cacheSqlDao.countUsers(bound), cacheSqlDao.countUsers(streamed));
+		Assertions.assertEquals(
+				cacheSqlDao.findUsers(bound, "id", false, null, null, 1, 2).stream().map(r -> r[0]).toList(),
+				cacheSqlDao.findUsers(streamed, "id", false, null, null, 1, 2).stream().map(r -> r[0]).toList());
+		Assertions.assertEquals(cacheSqlDao.countUsers(new CacheSqlDao.UserFilter(null, null, false, null, null)),
+				cacheSqlDao.countUsers(bound) + cacheSqlDao.countUsers(hidden));
+	}
+
 	@Test
 	void toUserNull() {
 		Assertions.assertNull(repository.toUser(null));
 	}
 
+	@Test
+	void findAllNoCache() {
+		final var groups = repository.getGroupRepository().findAllNoCache();
+		em.flush();
+		em.clear();
+		final var statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+		try {
+			final var users = repository.findAllNoCache(groups);
+
+			// One query for the users with their company, and one for all credentials
+			Assertions.assertTrue(statistics.getPrepareStatementCount() <= 2);
+			Assertions.assertEquals(0, statistics.getEntityLoadCount());
+
+			// Same result than the unitary load
+			users.values().forEach(u -> {
+				final var expected = repository.findByIdNoCache(u.getId());
+				Assertions.assertEquals(expected.getDn(), u.getDn());
+				Assertions.assertEquals(expected.isSecured(), u.isSecured());
+				Assertions.assertEquals(expected.getLocked(), u.getLocked());
+				Assertions.assertEquals(expected.getLockedBy(), u.getLockedBy());
+				Assertions.assertEquals(expected.getMails(), u.getMails());
+				Assertions.assertEquals(groups.values().stream().filter(g -> g.getMembers().contains(u.getId()))
+						.map(GroupOrg::getId).toList(), u.getGroups());
+			});
+			Assertions.assertTrue(users.get("jdoe4").isSecured());
+			Assertions.assertFalse(users.get("flast0").isSecured());
+		} finally {
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+
 	@Test
 	void getToken() {
 		Assertions.assertEquals("Secret1", repository.getToken("jdoe4"));
@@ -144,6 +499,76 @@ class UserSqlRepositoryTest extends AbstractJpaTest {
 		Assertions.assertEquals("fdoe2", repository.authenticate("fdoe2", "new-password").getName());
 	}
 
+	@Test
+	void setPasswordHashParameters() {
+		repository.setHashIteration(11);
+		setPassword("Secret1", "new-password");
+		final var credential = credentialRepository.findByExpected("user.id", "jdoe4");
+		Assertions.assertEquals(SqlPluginResource.DEFAULT_ALG, credential.getAlgorithm());
+		Assertions.assertEquals(11, credential.getIterations());
+		Assertions.assertEquals(256, credential.getKeyLength());
+		final var value = credential.getValue();
+
+		// Verified with the stored parameters, then rehashed with the ones of the node
+		repository.setHashIteration(12);
+		Assertions.assertEquals("jdoe4", repository.authenticate("jdoe4", "new-password").getName());
+		final var rehashed = credentialRepository.findByExpected("user.id", "jdoe4");
+		Assertions.assertEquals(12, rehashed.getIterations());
+		Assertions.assertNotEquals(value, rehashed.getValue());
+		Assertions.assertEquals("jdoe4", repository.authenticate("jdoe4", "new-password").getName());
+		Assertions.assertNull(repository.authenticate("jdoe4", "Secret1"));
+	}
+
+	@Test
+	void authenticateRehashLegacy() {
+		// Hashed without stored parameters
+		final var salt = credentialRepository.findByExpected("user.id", "fdoe2").getSalt();
+		Assertions.assertNull(repository.authenticate("fdoe2", "wrong-password"));
+		Assertions.assertNull(credentialRepository.findByExpected("user.id", "fdoe2").getIterations());
+
+		Assertions.assertEquals("fdoe2", repository.authenticate("fdoe2", "new-password").getName());
+		final var credential = credentialRepository.findByExpected("user.id", "fdoe2");
+		Assertions.assertNotEquals(salt, credential.getSalt());
+		Assertions.assertEquals(SqlPluginResource.DEFAULT_ALG, credential.getAlgorithm());
+		Assertions.assertEquals(10, credential.getIterations());
+		Assertions.assertEquals(256, credential.getKeyLength());
+		Assertions.assertEquals("fdoe2", repository.authenticate("fdoe2", "new-password").getName());
+
+		// Plain text values are not rehashed
+		Assertions.assertEquals("jdoe4", repository.authenticate("jdoe4", "Secret1").getName());
+		Assertions.assertNull(credentialRepository.findByExpected("user.id", "jdoe4").getSalt());
+	}
+
+	@Test
+	void authenticateLegacyChangedParameters() {
+		// Hashed without stored parameters, verified with the legacy ones whatever the parameters of the node
+		repository.setHashIteration(20);
+		repository.setKeyLength(512);
+		Assertions.assertEquals("fdoe2", repository.authenticate("fdoe2", "new-password").getName());
+		final var credential = credentialRepository.findByExpected("user.id", "fdoe2");
+		Assertions.assertEquals(20, credential.getIterations());
+		Assertions.assertEquals(512, credential.getKeyLength());
+		Assertions.assertEquals("fdoe2", repository.authenticate("fdoe2", "new-password").getName());
+	}
+
+	@Test
+	void updateHashChanged() {
+		final var credential = credentialRepository.findByExpected("user.id", "fdoe2");
+		final var salt = credential.getSalt();
+		final var value = credential.getValue();
+
+		// Changed since the verification, not overwritten
+		Assertions.assertEquals(0, credentialRepository.updateHash("fdoe2", "changed", value, "salt", "value",
+				SqlPluginResource.DEFAULT_ALG, 10, 256));
+		Assertions.assertEquals(0, credentialRepository.updateHash("fdoe2", salt, "changed", "salt", "value",
+				SqlPluginResource.DEFAULT_ALG, 10, 256));
+		Assertions.assertEquals(value, credentialRepository.findByExpected("user.id", "fdoe2").getValue());
+
+		Assertions.assertEquals(1, credentialRepository.updateHash("fdoe2", salt, value, "salt", "value",
+				SqlPluginResource.DEFAULT_ALG, 10, 256));
+		Assertions.assertEquals("value", credentialRepository.findByExpected("user.id", "fdoe2").getValue());
+	}
+
 	@Test
 	void setPasswordNullOldPassword() {
 		setPassword(null, "new-password");
@@ -221,6 +646,23 @@ class UserSqlRepositoryTest extends AbstractJpaTest {
 		Assertions.assertEquals("socygan", cacheUser.getIsolated());
 	}
 
+	@Test
+	void getTokenCached() {
+		Assertions.assertEquals("Secret1", repository.getToken("jdoe4"));
+
+		// Changed behind the repository, still served by the cache
+		credentialRepository.findBy("user.id", "jdoe4").setValue("changed");
+		Assertions.assertEquals("Secret1", repository.getToken("jdoe4"));
+
+		// Invalidated by the credential changes
+		repository.setPassword(newUser(), "new-password");
+		Assertions.assertEquals(credentialRepository.findBy("user.id", "jdoe4").getValue(),
+				repository.getToken("jdoe4"));
+		repository.lock("fdaugan", newUser());
+		Assertions.assertNull(repository.getToken("jdoe4"));
+		Assertions.assertNotNull(repository.findByIdNoCache("jdoe4").getLocked());
+	}
+
 	@Test
 	void lock() {
 		final var cacheUser = newUser();
@@ -235,6 +677,22 @@ class UserSqlRepositoryTest extends AbstractJpaTest {
 		Assertions.assertEquals("fdaugan", cacheUser.getLockedBy());
 	}
 
+	@Test
+	void lockHashParameters() {
+		final var user = repository.findById("fdoe2");
+		repository.setPassword(user, "new-password");
+		Assertions.assertNotNull(credentialRepository.findBy("user.id", "fdoe2").getIterations());
+		repository.lock("fdaugan", user);
+
+		// The hash parameters are cleared with the hash
+		final var credential = credentialRepository.findBy("user.id", "fdoe2");
+		Assertions.assertNull(credential.getValue());
+		Assertions.assertNull(credential.getSalt());
+		Assertions.assertNull(credential.getAlgorithm());
+		Assertions.assertNull(credential.getIterations());
+		Assertions.assertNull(credential.getKeyLength());
+	}
+
 	@Test
 	void lockAlreadyLocked() {
 		final var cacheUser = newUser();
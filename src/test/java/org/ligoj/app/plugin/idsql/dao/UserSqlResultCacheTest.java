@@ -0,0 +1,67 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.idsql.dao;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Test class of {@link UserSqlResultCache}
+ */
+class UserSqlResultCacheTest {
+
+	private static UserSqlResultCache.Key newKey(final String criteria) {
+		return new UserSqlResultCache.Key(null, Set.of("company"), criteria, "id", false);
+	}
+
+	@Test
+	void get() {
+		final var cache = new UserSqlResultCache(10);
+		final var users = new UserOrg[] { new UserOrg() };
+		Assertions.assertNull(cache.get(newKey("a"), 1));
+		cache.put(newKey("a"), 1, users);
+		Assertions.assertSame(users, cache.get(newKey("a"), 1));
+		Assertions.assertNull(cache.get(newKey("b"), 1));
+		Assertions.assertEquals(1, cache.getHits());
+		Assertions.assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	void getNewVersion() {
+		final var cache = new UserSqlResultCache(10);
+		cache.put(newKey("a"), 1, new UserOrg[1]);
+		Assertions.assertNull(cache.get(newKey("a"), 2));
+		Assertions.assertEquals(0, cache.size());
+
+		// Computed from an outdated version
+		cache.put(newKey("a"), 1, new UserOrg[1]);
+		Assertions.assertNull(cache.get(newKey("a"), 2));
+	}
+
+	@Test
+	void putEvict() {
+		final var cache = new UserSqlResultCache(10);
+		cache.put(newKey("a"), 1, new UserOrg[4]);
+		cache.put(newKey("b"), 1, new UserOrg[4]);
+
+		// "a" is the most recently used
+		Assertions.assertNotNull(cache.get(newKey("a"), 1));
+		cache.put(newKey("c"), 1, new UserOrg[4]);
+		Assertions.assertNotNull(cache.get(newKey("a"), 1));
+		Assertions.assertNull(cache.get(newKey("b"), 1));
+		Assertions.assertNotNull(cache.get(newKey("c"), 1));
+
+		// Replaced entry
+		cache.put(newKey("c"), 1, new UserOrg[6]);
+		Assertions.assertEquals(2, cache.size());
+
+		// Heavier than the whole cache
+		cache.put(newKey("d"), 1, new UserOrg[11]);
+		Assertions.assertNull(cache.get(newKey("d"), 1));
+		Assertions.assertEquals(2, cache.size());
+	}
+}
@@ -3,10 +3,14 @@
  */
 package org.ligoj.app.plugin.idsql.resource;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.persistence.EntityNotFoundException;
 import jakarta.ws.rs.NotAuthorizedException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.CompanyOrg;
+import org.ligoj.app.iam.GroupOrg;
 import org.ligoj.app.iam.UserOrg;
 import org.ligoj.app.iam.model.CacheCompany;
 import org.ligoj.app.iam.model.CacheGroup;
@@ -22,7 +26,14 @@ import org.ligoj.bootstrap.core.validation.ValidationJsonException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Test class of {@link SqlPluginResource}
@@ -64,6 +75,18 @@ class SqlPluginResourceTest extends AbstractSqlPluginResourceTest {
 		Assertions.assertTrue(resource.checkSubscriptionStatus(parameters).getStatus().isUp());
 	}
 
+	@Test
+	void findGroupByIdNoCache() {
+		final var expected = getGroup().findById("ligoj-jupiter");
+		final var group = getGroup().findByIdNoCache("ligoj-jupiter");
+		Assertions.assertEquals(expected.getDn(), group.getDn());
+		Assertions.assertEquals(expected.getName(), group.getName());
+		Assertions.assertEquals(expected.getMembers(), group.getMembers());
+		Assertions.assertEquals(expected.getParent(), group.getParent());
+		Assertions.assertEquals(Set.copyOf(expected.getSubGroups()), Set.copyOf(group.getSubGroups()));
+		Assertions.assertNull(getGroup().findByIdNoCache("any"));
+	}
+
 	@Test
 	void getVersion() {
 		final var version = resource.getVersion(null);
@@ -362,6 +385,13 @@ class SqlPluginResourceTest extends AbstractSqlPluginResourceTest {
 				resource.checkStatus("service:id:sql:local", subscriptionResource.getParametersNoCheck(subscription)));
 	}
 
+	@Test
+	void getStatus() {
+		final var status = resource.getStatus();
+		Assertions.assertEquals(Set.of("refresh", "refresh-coalesced", "auth-executed", "auth-rejected", "auth-queue",
+				"auth-wait", "auth-throttled"), status.keySet());
+	}
+
 	@Test
 	void checkSubscriptionStatus() {
 		Assertions.assertTrue(resource.checkSubscriptionStatus(subscriptionResource.getParametersNoCheck(subscription))
@@ -549,4 +579,104 @@ class SqlPluginResourceTest extends AbstractSqlPluginResourceTest {
 		final var authentication = new UsernamePasswordAuthenticationToken("jdoe4", "any");
 		Assertions.assertThrows(BadCredentialsException.class, () -> resource.authenticate(authentication, "service:id:sql:secondary", false));
 	}
+
+	private List<JsonNode> export(final List<String> companies, final List<String> groups) throws IOException {
+		final var out = new ByteArrayOutputStream();
+		resource.export(companies, groups).write(out);
+		final var mapper = new ObjectMapper();
+		final var result = new ArrayList<JsonNode>();
+		for (final var line : out.toString(StandardCharsets.UTF_8).split("\n")) {
+			if (!line.isEmpty()) {
+				result.add(mapper.readTree(line));
+			}
+		}
+		return result;
+	}
+
+	private Set<String> getIds(final List<JsonNode> lines, final String type) {
+		return lines.stream().filter(l -> type.equals(l.get("type").asText())).map(l -> l.get("id").asText())
+				.collect(Collectors.toSet());
+	}
+
+	@Test
+	void export() throws IOException {
+		final var lines = export(null, null);
+		final var users = getIds(lines, "user");
+		final var groups = getIds(lines, "group");
+		Assertions.assertFalse(users.isEmpty());
+		Assertions.assertFalse(groups.isEmpty());
+		Assertions.assertFalse(getIds(lines, "company").isEmpty());
+
+		// Memberships refer to exported entries
+		final var memberships = lines.stream().filter(l -> "membership".equals(l.get("type").asText())).toList();
+		Assertions.assertFalse(memberships.isEmpty());
+		memberships.forEach(m -> {
+			Assertions.assertTrue(groups.contains(m.get("group").asText()));
+			Assertions.assertTrue(m.has("user") ? users.contains(m.get("user").asText())
+					: groups.contains(m.get("subGroup").asText()));
+		});
+	}
+
+	@Test
+	void exportFilters() throws IOException {
+		final var companies = getIds(export(List.of("ing"), null), "company");
+		Assertions.assertTrue(companies.contains("ing"));
+		export(List.of("ing"), null).stream().filter(l -> "user".equals(l.get("type").asText()))
+				.forEach(u -> Assertions.assertTrue(companies.contains(u.get("company").asText())));
+
+		final var lines = export(null, List.of("DIG RHA"));
+		Assertions.assertEquals(Set.of("dig rha"), getIds(lines, "group"));
+		final var users = getIds(lines, "user");
+		Assertions.assertFalse(users.isEmpty());
+		Assertions.assertTrue(getGroup().findAll().get("dig rha").getMembers().containsAll(users));
+	}
+
+	@Test
+	void exportNoRight() throws IOException {
+		initSpringSecurityContext("any");
+		Assertions.assertTrue(getIds(export(null, null), "user").isEmpty());
+	}
+
+	@Test
+	void findUsersAfter() throws IOException {
+		final var actual = new ArrayList<String>();
+		var page = resource.findUsersAfter(null, null, false, null, null, 3);
+		while (!page.isEmpty()) {
+			Assertions.assertTrue(page.size() <= 3);
+			page.stream().map(UserOrg::getId).forEach(actual::add);
+			page = resource.findUsersAfter(null, null, false, null, page.getLast().getId(), 3);
+		}
+		Assertions.assertEquals(getIds(export(null, null), "user").stream().sorted().toList(), actual);
+		Assertions.assertTrue(resource.findUsersAfter(null, null, false, null, null, -1).isEmpty());
+	}
+
+	@Test
+	void findCompaniesAfter() throws IOException {
+		final var actual = new ArrayList<String>();
+		var page = resource.findCompaniesAfter(null, null, 2);
+		while (!page.isEmpty()) {
+			page.stream().map(CompanyOrg::getId).forEach(actual::add);
+			page = resource.findCompaniesAfter(null, page.getLast().getId(), 2);
+		}
+		Assertions.assertEquals(getIds(export(null, null), "company").stream().sorted().toList(), actual);
+	}
+
+	@Test
+	void findGroupsAfter() throws IOException {
+		final var first = resource.findGroupsAfter(null, null, Integer.MAX_VALUE);
+		Assertions.assertEquals(getIds(export(null, null), "group").stream().sorted().toList(),
+				first.stream().map(GroupOrg::getId).toList());
+		Assertions.assertTrue(resource.findGroupsAfter(null, first.getLast().getId(), 10).isEmpty());
+	}
+
+	@Test
+	void count() throws IOException {
+		final var lines = export(null, null);
+		Assertions.assertEquals(getIds(lines, "user").size(), resource.countUsers(null));
+		Assertions.assertEquals(getIds(lines, "company").size(), resource.countCompanies(null));
+		Assertions.assertEquals(getIds(lines, "group").size(), resource.countGroups(null));
+		Assertions.assertEquals(resource.findUsersAfter("o", null, false, null, null, 1000).size(),
+				resource.countUsers("o"));
+		Assertions.assertEquals(0, resource.countGroups("-none-"));
+	}
 }